@@ -0,0 +1,41 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+// 用 1、2、4 …… 直到 CPU 核数个线程依次运行 benchmark，同时报告吞吐量、平均耗时和 GC 分配速率（ gc.alloc.rate.norm ）
+// 用法：mvn package && java -jar target/benchmarks.jar [benchmark 正则，例如 MapBenchmark]
+// 需要更多控制时也可以直接使用 JMH 自带的命令行：java -cp target/benchmarks.jar org.openjdk.jmh.Main -h
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .exclude(BenchmarkRunner.class.getSimpleName())
+                    .mode(Mode.Throughput)
+                    .mode(Mode.AverageTime)
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .threads(threads)
+                    .forks(1)
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(1))
+                    .addProfiler(GCProfiler.class);
+            new Runner(options.build()).run();
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+    }
+}
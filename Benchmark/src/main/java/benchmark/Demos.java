@@ -0,0 +1,87 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+// 被测的示例类都在默认包里，而 JMH 要求 benchmark 类必须有包名，有包名的类又不能直接引用默认包里的类，
+// 所以通过 MethodHandle 调用它们。句柄保存在 static final 字段里，JIT 会把它当成常量内联，调用开销和直接调用基本一样。
+// 句柄只把接收者类型改成 Object，其它参数和返回值保持原来的类型，invokeExact 不会装箱。
+final class Demos {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private Demos() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 构造函数句柄，返回类型为 Object
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            MethodHandle handle = LOOKUP.unreflectConstructor(constructor);
+            return handle.asType(handle.type().changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 实例方法句柄，第一个参数（ 接收者 ）的类型为 Object
+    static MethodHandle virtual(String className, String name, Class<?>... parameterTypes) {
+        MethodHandle handle = unreflect(className, name, parameterTypes);
+        return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    // 静态方法句柄
+    static MethodHandle statics(String className, String name, Class<?>... parameterTypes) {
+        return unreflect(className, name, parameterTypes);
+    }
+
+    // 静态方法句柄，参数和返回值中默认包里的类型都换成 Object，调用方无法直接写出这些类型
+    static MethodHandle staticsErased(String className, String name, Class<?>... parameterTypes) {
+        MethodHandle handle = unreflect(className, name, parameterTypes);
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (inDefaultPackage(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (inDefaultPackage(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    // 默认包里的类（ 包括它们的嵌套类 ）的名字中没有 '.'
+    private static boolean inDefaultPackage(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getName().indexOf('.') < 0;
+    }
+
+    static Object newInstance(MethodHandle constructor) {
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle unreflect(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return LOOKUP.unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
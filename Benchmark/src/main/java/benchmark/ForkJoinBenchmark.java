@@ -0,0 +1,72 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+// CustomRecursiveTask 在不同拆分阈值下的表现，threshold 为 0 时使用 ForkJoinDemo 里默认的自适应拆分策略（ AdaptiveSplitPolicy ），
+// 20 是原来固定的 THRESHOLD；threshold 不小于 size 时不拆分，相当于在一个线程里顺序计算
+// RangeSumTask 用同样的阈值按下标拆分，不复制数组、不装箱
+@State(Scope.Benchmark)
+public class ForkJoinBenchmark {
+
+    private static final MethodHandle NEW_TASK = Demos.constructor("CustomRecursiveTask", int[].class, int.class);
+
+    private static final MethodHandle NEW_ADAPTIVE_TASK = Demos.constructor("CustomRecursiveTask", int[].class);
+
+    private static final MethodHandle NEW_RANGE_TASK = Demos.constructor("RangeSumTask", int[].class, int.class, int.class, int.class);
+
+    private static final MethodHandle NEW_ADAPTIVE_RANGE_TASK = Demos.constructor("RangeSumTask", int[].class, int.class, int.class);
+
+    private static final MethodHandle RANGE_RESULT = Demos.virtual("RangeSumTask", "getResult");
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"0", "20", "1000", "10000", "100000"})
+    public int threshold;
+
+    private int[] arr;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() {
+        arr = new int[size];
+        for (int i = 0; i < size; i++) {
+            arr[i] = ThreadLocalRandom.current().nextInt(100);
+        }
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Integer customRecursiveTask() throws Throwable {
+        Object task = threshold == 0
+                ? (Object) NEW_ADAPTIVE_TASK.invokeExact(arr)
+                : (Object) NEW_TASK.invokeExact(arr, threshold);
+        return pool.invoke((ForkJoinTask<Integer>) task);
+    }
+
+    @Benchmark
+    public long rangeSumTask() throws Throwable {
+        Object task = threshold == 0
+                ? (Object) NEW_ADAPTIVE_RANGE_TASK.invokeExact(arr, 0, size)
+                : (Object) NEW_RANGE_TASK.invokeExact(arr, 0, size, threshold);
+        pool.invoke((ForkJoinTask<?>) task);
+        return (long) RANGE_RESULT.invokeExact(task);
+    }
+}
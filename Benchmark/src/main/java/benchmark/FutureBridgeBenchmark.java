@@ -0,0 +1,103 @@
+package benchmark;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// FutureBridge 在不同 CallbackPolicy 下完成一次转换的开销：direct 没有线程切换，bounded 和 executor 每次完成都切换一次线程
+// blockingHop 是以前 supplyAsync(() -> listenableFuture.get()) 的写法，占用一个线程阻塞等待，和 policy 无关，作为对照
+@State(Scope.Benchmark)
+public class FutureBridgeBenchmark {
+
+    private static final Class<?> CALLBACK_POLICY = Demos.type("FutureBridge$CallbackPolicy");
+
+    private static final MethodHandle DIRECT = Demos.staticsErased("FutureBridge$CallbackPolicy", "direct");
+
+    private static final MethodHandle BOUNDED_POOL = Demos.staticsErased("FutureBridge$CallbackPolicy", "boundedPool", int.class, int.class);
+
+    private static final MethodHandle EXECUTOR = Demos.staticsErased("FutureBridge$CallbackPolicy", "executor", Executor.class);
+
+    private static final MethodHandle CLOSE = Demos.virtual("FutureBridge$CallbackPolicy", "close");
+
+    private static final MethodHandle TO_COMPLETABLE = Demos.staticsErased("FutureBridge", "toCompletableFuture", ListenableFuture.class, CALLBACK_POLICY);
+
+    private static final MethodHandle TO_LISTENABLE = Demos.staticsErased("FutureBridge", "toListenableFuture", CompletableFuture.class, CALLBACK_POLICY);
+
+    @Param({"direct", "bounded", "executor"})
+    public String policy;
+
+    private Object callbackPolicy;
+
+    private ExecutorService callbackExecutor;
+
+    private ExecutorService blockingPool;
+
+    @Setup
+    public void setUp() throws Throwable {
+        switch (policy) {
+            case "direct":
+                callbackPolicy = (Object) DIRECT.invokeExact();
+                break;
+            case "bounded":
+                callbackPolicy = (Object) BOUNDED_POOL.invokeExact(2, 1024);
+                break;
+            case "executor":
+                // 单线程的 Executor，相当于调用者的事件循环
+                callbackExecutor = Executors.newSingleThreadExecutor();
+                callbackPolicy = (Object) EXECUTOR.invokeExact((Executor) callbackExecutor);
+                break;
+            default:
+                throw new IllegalArgumentException(policy);
+        }
+        blockingPool = Executors.newFixedThreadPool(2);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        // 关闭 boundedPool() 创建的线程池，其它 policy 什么也不做
+        CLOSE.invokeExact(callbackPolicy);
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdown();
+        }
+        blockingPool.shutdown();
+    }
+
+    // 先转换再完成，走注册回调的路径
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Integer listenableToCompletable() throws Throwable {
+        SettableFuture<Integer> source = SettableFuture.create();
+        CompletableFuture<Integer> result = (CompletableFuture<Integer>) TO_COMPLETABLE.invokeExact((ListenableFuture<?>) source, callbackPolicy);
+        source.set(1);
+        return result.join();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Integer completableToListenable() throws Throwable {
+        CompletableFuture<Integer> source = new CompletableFuture<>();
+        ListenableFuture<Integer> result = (ListenableFuture<Integer>) TO_LISTENABLE.invokeExact((CompletableFuture<?>) source, callbackPolicy);
+        source.complete(1);
+        return result.get();
+    }
+
+    @Benchmark
+    public Integer blockingHop() {
+        SettableFuture<Integer> source = SettableFuture.create();
+        CompletableFuture<Integer> result = CompletableFuture.supplyAsync(() -> Futures.getUnchecked(source), blockingPool);
+        source.set(1);
+        return result.join();
+    }
+}
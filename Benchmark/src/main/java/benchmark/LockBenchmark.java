@@ -0,0 +1,36 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+
+// 所有线程共享同一个对象：ReentrantLock 保护的计数器 SharedObject.perform() 对比 static synchronized 的 UnSafeCalc.addOne()
+@State(Scope.Benchmark)
+public class LockBenchmark {
+
+    private static final MethodHandle NEW_SHARED_OBJECT = Demos.constructor("SharedObject");
+
+    private static final MethodHandle PERFORM = Demos.virtual("SharedObject", "perform");
+
+    private static final MethodHandle ADD_ONE = Demos.statics("UnSafeCalc", "addOne");
+
+    private Object sharedObject;
+
+    @Setup
+    public void setUp() {
+        sharedObject = Demos.newInstance(NEW_SHARED_OBJECT);
+    }
+
+    @Benchmark
+    public void reentrantLock() throws Throwable {
+        PERFORM.invokeExact(sharedObject);
+    }
+
+    @Benchmark
+    public void staticSynchronized() throws Throwable {
+        ADD_ONE.invokeExact();
+    }
+}
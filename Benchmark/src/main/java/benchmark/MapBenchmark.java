@@ -0,0 +1,105 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ThreadLocalRandom;
+
+// 读多写少的 map：StampedLockDemo（ 读锁 / 乐观读 ）对比 SynchronizedHashMapWithReadWriteLock 和 StripedHashMap
+// writePercent 控制写操作的比例，默认 10% 写 90% 读
+@State(Scope.Benchmark)
+public class MapBenchmark {
+
+    private static final int KEYS = 1024;
+
+    private static final MethodHandle NEW_STAMPED = Demos.constructor("StampedLockDemo");
+
+    private static final MethodHandle STAMPED_PUT = Demos.virtual("StampedLockDemo", "put", String.class, String.class);
+
+    private static final MethodHandle STAMPED_GET = Demos.virtual("StampedLockDemo", "get", String.class);
+
+    private static final MethodHandle STAMPED_OPTIMISTIC_GET = Demos.virtual("StampedLockDemo", "readWithOptimisticLock", String.class);
+
+    private static final MethodHandle NEW_RW = Demos.constructor("SynchronizedHashMapWithReadWriteLock");
+
+    private static final MethodHandle RW_PUT = Demos.virtual("SynchronizedHashMapWithReadWriteLock", "put", String.class, String.class);
+
+    private static final MethodHandle RW_GET = Demos.virtual("SynchronizedHashMapWithReadWriteLock", "get", String.class);
+
+    private static final MethodHandle NEW_STRIPED = Demos.constructor("StripedHashMap");
+
+    private static final MethodHandle STRIPED_PUT = Demos.virtual("StripedHashMap", "put", Object.class, Object.class);
+
+    private static final MethodHandle STRIPED_GET = Demos.virtual("StripedHashMap", "get", Object.class);
+
+    @Param({"10"})
+    public int writePercent;
+
+    private final String[] keys = new String[KEYS];
+
+    private Object stamped;
+
+    private Object readWrite;
+
+    private Object striped;
+
+    @Setup
+    public void setUp() throws Throwable {
+        stamped = Demos.newInstance(NEW_STAMPED);
+        readWrite = Demos.newInstance(NEW_RW);
+        striped = Demos.newInstance(NEW_STRIPED);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key-" + i;
+            STAMPED_PUT.invokeExact(stamped, keys[i], keys[i]);
+            RW_PUT.invokeExact(readWrite, keys[i], keys[i]);
+            Object ignored = STRIPED_PUT.invokeExact(striped, (Object) keys[i], (Object) keys[i]);
+        }
+    }
+
+    @Benchmark
+    public String stampedReadLock() throws Throwable {
+        String key = keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        if (isWrite()) {
+            STAMPED_PUT.invokeExact(stamped, key, key);
+            return key;
+        }
+        return (String) STAMPED_GET.invokeExact(stamped, key);
+    }
+
+    @Benchmark
+    public String stampedOptimisticRead() throws Throwable {
+        String key = keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        if (isWrite()) {
+            STAMPED_PUT.invokeExact(stamped, key, key);
+            return key;
+        }
+        return (String) STAMPED_OPTIMISTIC_GET.invokeExact(stamped, key);
+    }
+
+    @Benchmark
+    public String readWriteLock() throws Throwable {
+        String key = keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        if (isWrite()) {
+            RW_PUT.invokeExact(readWrite, key, key);
+            return key;
+        }
+        return (String) RW_GET.invokeExact(readWrite, key);
+    }
+
+    @Benchmark
+    public Object striped() throws Throwable {
+        String key = keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        if (isWrite()) {
+            return (Object) STRIPED_PUT.invokeExact(striped, (Object) key, (Object) key);
+        }
+        return (Object) STRIPED_GET.invokeExact(striped, (Object) key);
+    }
+
+    private boolean isWrite() {
+        return ThreadLocalRandom.current().nextInt(100) < writePercent;
+    }
+}
@@ -0,0 +1,140 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+// ForkJoinDemo 里的 ParallelPrimitives 和 JDK 自带的并行实现、顺序循环的对比；
+// Arrays.parallelPrefix 和并行流都使用公共池，所以 ParallelPrimitives 也传入公共池。
+// 前缀和是原地计算的，每次调用都在上一次的结果上继续计算，long 溢出后回绕，不影响耗时
+@State(Scope.Benchmark)
+public class ParallelPrimitivesBenchmark {
+
+    private static final MethodHandle INCLUSIVE_SCAN = Demos.statics("ParallelPrimitives", "inclusiveScan", ForkJoinPool.class, long[].class);
+
+    private static final MethodHandle FILTER = Demos.statics("ParallelPrimitives", "filter", ForkJoinPool.class, int[].class, IntPredicate.class);
+
+    private static final MethodHandle HISTOGRAM = Demos.statics("ParallelPrimitives", "histogram", ForkJoinPool.class, int[].class, int.class);
+
+    private static final MethodHandle SEGMENTED_SUM = Demos.statics("ParallelPrimitives", "segmentedSum", ForkJoinPool.class, int[].class, int[].class);
+
+    private static final int BINS = 1024;
+
+    private static final IntPredicate PREDICATE = a -> (a & 7) == 0;
+
+    @Param({"1000000", "10000000"})
+    public int size;
+
+    @Param({"1000"})
+    public int segments;
+
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private long[] longs;
+
+    private int[] ints;
+
+    private int[] offsets;
+
+    @Setup
+    public void setUp() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        longs = new long[size];
+        ints = new int[size];
+        for (int i = 0; i < size; i++) {
+            longs[i] = random.nextInt(100);
+            ints[i] = random.nextInt(BINS);
+        }
+        offsets = new int[segments + 1];
+        for (int s = 1; s < segments; s++) {
+            offsets[s] = random.nextInt(size + 1);
+        }
+        offsets[segments] = size;
+        Arrays.sort(offsets);
+    }
+
+    @Benchmark
+    public long[] scanParallelPrimitives() throws Throwable {
+        INCLUSIVE_SCAN.invokeExact(pool, longs);
+        return longs;
+    }
+
+    @Benchmark
+    public long[] scanArraysParallelPrefix() {
+        Arrays.parallelPrefix(longs, Long::sum);
+        return longs;
+    }
+
+    @Benchmark
+    public long[] scanSequential() {
+        long sum = 0;
+        for (int i = 0; i < longs.length; i++) {
+            sum += longs[i];
+            longs[i] = sum;
+        }
+        return longs;
+    }
+
+    @Benchmark
+    public int[] filterParallelPrimitives() throws Throwable {
+        return (int[]) FILTER.invokeExact(pool, ints, PREDICATE);
+    }
+
+    @Benchmark
+    public int[] filterParallelStream() {
+        return IntStream.of(ints).parallel().filter(PREDICATE).toArray();
+    }
+
+    @Benchmark
+    public int[] filterSequential() {
+        int[] result = new int[ints.length];
+        int k = 0;
+        for (int a : ints) {
+            if (PREDICATE.test(a)) {
+                result[k++] = a;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    @Benchmark
+    public long[] histogramParallelPrimitives() throws Throwable {
+        return (long[]) HISTOGRAM.invokeExact(pool, ints, BINS);
+    }
+
+    @Benchmark
+    public long[] histogramSequential() {
+        long[] counts = new long[BINS];
+        for (int a : ints) {
+            counts[a]++;
+        }
+        return counts;
+    }
+
+    @Benchmark
+    public long[] segmentedSumParallelPrimitives() throws Throwable {
+        return (long[]) SEGMENTED_SUM.invokeExact(pool, ints, offsets);
+    }
+
+    @Benchmark
+    public long[] segmentedSumSequential() {
+        long[] sums = new long[segments];
+        for (int s = 0; s < segments; s++) {
+            long sum = 0;
+            for (int i = offsets[s], end = offsets[s + 1]; i < end; i++) {
+                sum += ints[i];
+            }
+            sums[s] = sum;
+        }
+        return sums;
+    }
+}
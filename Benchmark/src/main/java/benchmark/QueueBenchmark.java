@@ -0,0 +1,63 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// 所有线程共享一个容量为 10 的队列，每次调用先 put() 再 take()，
+// 每个线程放进去的元素自己再取出来，线程数超过容量时 put() 会阻塞但不会死锁，迭代结束时也不会有线程卡在队列上
+// CustomBlockingQueue（ synchronized + notifyAll ）对比 LinkedBlockingQueue 和 MpmcRingBuffer
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+
+    private static final int CAPACITY = 10;
+
+    private static final Integer ITEM = 42;
+
+    private static final MethodHandle NEW_CUSTOM = Demos.constructor("CustomBlockingQueue");
+
+    private static final MethodHandle CUSTOM_PUT = Demos.virtual("CustomBlockingQueue", "put", Object.class);
+
+    private static final MethodHandle CUSTOM_TAKE = Demos.virtual("CustomBlockingQueue", "take");
+
+    private static final MethodHandle NEW_RING = Demos.constructor("MpmcRingBuffer", int.class);
+
+    private static final MethodHandle RING_PUT = Demos.virtual("MpmcRingBuffer", "put", Object.class);
+
+    private static final MethodHandle RING_TAKE = Demos.virtual("MpmcRingBuffer", "take");
+
+    private Object custom;
+
+    private Object ring;
+
+    private LinkedBlockingQueue<Integer> linked;
+
+    @Setup
+    public void setUp() throws Throwable {
+        custom = Demos.newInstance(NEW_CUSTOM);
+        ring = (Object) NEW_RING.invokeExact(CAPACITY);
+        linked = new LinkedBlockingQueue<>(CAPACITY);
+    }
+
+    @Benchmark
+    public Object customBlockingQueue() throws Throwable {
+        CUSTOM_PUT.invokeExact(custom, (Object) ITEM);
+        return (Object) CUSTOM_TAKE.invokeExact(custom);
+    }
+
+    @Benchmark
+    public Integer linkedBlockingQueue() throws InterruptedException {
+        linked.put(ITEM);
+        return linked.take();
+    }
+
+    @Benchmark
+    public Object mpmcRingBuffer() throws Throwable {
+        RING_PUT.invokeExact(ring, (Object) ITEM);
+        return (Object) RING_TAKE.invokeExact(ring);
+    }
+}
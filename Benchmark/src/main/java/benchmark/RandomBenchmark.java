@@ -0,0 +1,25 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+// 和 ThreadLocalRandomDemo 一样：所有线程共享一个 Random 实例，对比每个线程使用自己的 ThreadLocalRandom
+@State(Scope.Benchmark)
+public class RandomBenchmark {
+
+    private final Random random = new Random();
+
+    @Benchmark
+    public int sharedRandom() {
+        return random.nextInt();
+    }
+
+    @Benchmark
+    public int threadLocalRandom() {
+        return ThreadLocalRandom.current().nextInt();
+    }
+}
@@ -0,0 +1,49 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.Semaphore;
+
+// 所有线程共享一个信号量，每次调用 acquire() 后立即 release()：java.util.concurrent.Semaphore 对比 MySemaphore
+@State(Scope.Benchmark)
+public class SemaphoreBenchmark {
+
+    private static final MethodHandle NEW_MY_SEMAPHORE = Demos.constructor("MySemaphore", int.class, boolean.class);
+
+    private static final MethodHandle MY_ACQUIRE = Demos.virtual("MySemaphore", "acquire");
+
+    private static final MethodHandle MY_RELEASE = Demos.virtual("MySemaphore", "release");
+
+    @Param({"1", "4"})
+    public int permits;
+
+    @Param({"false", "true"})
+    public boolean fair;
+
+    private Semaphore semaphore;
+
+    private Object mySemaphore;
+
+    @Setup
+    public void setUp() throws Throwable {
+        semaphore = new Semaphore(permits, fair);
+        mySemaphore = (Object) NEW_MY_SEMAPHORE.invokeExact(permits, fair);
+    }
+
+    @Benchmark
+    public void semaphore() throws InterruptedException {
+        semaphore.acquire();
+        semaphore.release();
+    }
+
+    @Benchmark
+    public void mySemaphore() throws Throwable {
+        MY_ACQUIRE.invokeExact(mySemaphore);
+        MY_RELEASE.invokeExact(mySemaphore);
+    }
+}
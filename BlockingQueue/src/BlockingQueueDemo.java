@@ -1,9 +1,17 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingQueueDemo {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         // java.util.concurrent 包提供的用于解决并发生产者 – 消费者问题的最有用的类 – BlockQueue。我们将介绍BlockingQueue 接口的 API 以及如何使用该接口的方法使编写并发程序更容易。
         // 一、BlockingQueue 的队列类型
         // java.util.concurrent 提供了两种类型的 BlockingQueue：
@@ -62,17 +70,163 @@ public class BlockingQueueDemo {
 
         BlockingQueue<Integer> blockingQueue = new LinkedBlockingQueue<>(BOUND);
 
-        new Thread(new NumbersProducer(blockingQueue, poisonPill, poisonPillProducer + mod)).start();
+        // 记下示例线程，后面测吞吐量之前要等它们全部结束
+        List<Thread> demoThreads = new ArrayList<>();
+        start(demoThreads, new NumbersProducer(blockingQueue, poisonPill, poisonPillProducer + mod));
         for (int i = 1; i < N_PRODUCERS; i++) {
-            new Thread(new NumbersProducer(blockingQueue, poisonPill, poisonPillProducer)).start();
+            start(demoThreads, new NumbersProducer(blockingQueue, poisonPill, poisonPillProducer));
         }
 
         for (int j = 0; j < N_CONSUMERS; j++) {
-            new Thread(new NumbersConsumer(blockingQueue, poisonPill)).start();
+            start(demoThreads, new NumbersConsumer(blockingQueue, poisonPill));
         }
         // BlockingQueue 是使用具有容量的构造创建的。我们正在创造 4 个生产者和 N 个消费者。我们将我们的毒 （ poison ） 丸 （ pill ）消息指定为 Integer.MAX_VALUE，因为我们的生产者在正常工作条件下永远不会发送这样的值。这里要注意的最重要的事情是 BlockingQueue 用于协调它们之间的工作。
         // 当我们运行程序时，4 个生产者线程将随机整数放入 BlockingQueue 中，消费者将从队列中获取这些元素。每个线程将打印到标准输出线程的名称和结果。
 
+        // 五、批量模式
+        // 上面的例子每个元素都要 put() / take() 一次，每次都要获取队列的锁，队列空 / 满时还会发生线程切换；消费者每个元素还要 println 一次。
+        // 速率很高时，真正的开销是每个元素的加锁和上下文切换。批量模式把这些开销摊到一批元素上：
+        // 1、 生产者在本地攒满 BATCH_SIZE 个元素（ 或者距离这一批第一个元素超过 FLUSH_INTERVAL ）后，把整批作为一个 chunk 放入队列；
+        //     上游元素的到达时间不确定，生产者用 poll(timeout) 等下一个元素，最多等到这一批的截止时间，超时就先把攒了一半的批次发出去，
+        //     而不是等下一个元素到达时才检查时间；
+        // 2、 消费者被唤醒后用 drainTo() 一次取走最多 MAX_DRAIN 个元素对应的 chunk，每批只打印一次；
+        // 见 class BatchNumbersProducer 和 class BatchNumbersConsumer
+        int BATCH_SIZE = 256;
+        int MAX_DRAIN = 1024;
+        long FLUSH_INTERVAL_MICROS = 200;
+
+        // 上游的 NumbersProducer 把随机数逐个放入 arrivals，批量生产者从 arrivals 取数攒批
+        BlockingQueue<Integer> arrivals = new LinkedBlockingQueue<>();
+        BlockingQueue<List<Integer>> batchQueue = new LinkedBlockingQueue<>(BOUND);
+        for (int i = 0; i < N_PRODUCERS; i++) {
+            start(demoThreads, new NumbersProducer(arrivals, poisonPill, 0, 100));
+        }
+        start(demoThreads, new BatchNumbersProducer(arrivals, batchQueue, poisonPill, poisonPillProducer + mod, 100, BATCH_SIZE, FLUSH_INTERVAL_MICROS, TimeUnit.MICROSECONDS));
+        for (int i = 1; i < N_PRODUCERS; i++) {
+            start(demoThreads, new BatchNumbersProducer(arrivals, batchQueue, poisonPill, poisonPillProducer, 100, BATCH_SIZE, FLUSH_INTERVAL_MICROS, TimeUnit.MICROSECONDS));
+        }
+        for (int j = 0; j < N_CONSUMERS; j++) {
+            start(demoThreads, new BatchNumbersConsumer(batchQueue, poisonPill, MAX_DRAIN, BATCH_SIZE, true));
+        }
+
+        // 吞吐量对比：同样的生产者 / 消费者数量和队列容量，逐个 put() / take() 与批量模式分别搬运相同数量的元素（ 不打印 ）
+        // 先等上面的示例线程全部结束，否则它们会和被测线程抢 CPU，测出来的数字没有意义
+        for (Thread thread : demoThreads) {
+            thread.join();
+        }
+        int elementsPerProducer = 1_000_000;
+        for (int batchSize : new int[]{64, 256, 1024}) {
+            long single = measureSingle(BOUND, N_PRODUCERS, N_CONSUMERS, elementsPerProducer);
+            long batch = measureBatch(BOUND, N_PRODUCERS, N_CONSUMERS, elementsPerProducer, batchSize, MAX_DRAIN, FLUSH_INTERVAL_MICROS);
+            System.out.printf("batchSize=%d single: %d ops/s, batch: %d ops/s, speedup: %.1fx%n",
+                    batchSize, single, batch, (double) batch / single);
+        }
+
+        // 六、原生类型队列
+        // BlockingQueue<Integer> 里的每个元素都要自动装箱成 Integer，毒丸检查也要走 equals()，数据量大时会给年轻代带来很大的 GC 压力。
+        // IntBlockingQueue / LongBlockingQueue 直接用 int[] / long[] 存储，提供 putInt() / takeInt() 等原生类型方法，
+        // 并且用 close() 表示数据流结束，不再需要占用一个取值作为毒丸：队列关闭并取空之后，drainTo() 返回 -1，takeInt() 抛出 NoSuchElementException。
+        // 见 class IntNumbersProducer 和 class IntNumbersConsumer
+        IntBlockingQueue intQueue = new IntBlockingQueue(BOUND);
+        AtomicInteger activeProducers = new AtomicInteger(N_PRODUCERS);
+        for (int i = 0; i < N_PRODUCERS; i++) {
+            new Thread(new IntNumbersProducer(intQueue, activeProducers, 100)).start();
+        }
+        for (int j = 0; j < N_CONSUMERS; j++) {
+            new Thread(new IntNumbersConsumer(intQueue, MAX_DRAIN)).start();
+        }
+
+    }
+
+    private static void start(List<Thread> threads, Runnable task) {
+        Thread thread = new Thread(task);
+        threads.add(thread);
+        thread.start();
+    }
+
+    // 逐个 put() / take()，返回每秒搬运的元素数
+    static long measureSingle(int bound, int producers, int consumers, int elementsPerProducer) throws InterruptedException {
+        int poisonPill = Integer.MAX_VALUE;
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>(bound);
+        AtomicLong received = new AtomicLong();
+        List<Thread> producerThreads = new ArrayList<>();
+        List<Thread> consumerThreads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            producerThreads.add(new Thread(new NumbersProducer(queue, poisonPill, 0, elementsPerProducer)));
+        }
+        for (int j = 0; j < consumers; j++) {
+            consumerThreads.add(new Thread(() -> {
+                try {
+                    long count = 0;
+                    while (queue.take() != poisonPill) {
+                        count++;
+                    }
+                    received.addAndGet(count);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        long elapsed = runAndMeasure(producerThreads, consumerThreads, () -> {
+            for (int j = 0; j < consumers; j++) {
+                queue.put(poisonPill);
+            }
+        });
+        return received.get() * 1_000_000_000L / elapsed;
+    }
+
+    // 批量模式，返回每秒搬运的元素数
+    static long measureBatch(int bound, int producers, int consumers, int elementsPerProducer,
+                             int batchSize, int maxDrain, long flushIntervalMicros) throws InterruptedException {
+        int poisonPill = Integer.MAX_VALUE;
+        BlockingQueue<List<Integer>> queue = new LinkedBlockingQueue<>(bound);
+        List<BatchNumbersConsumer> batchConsumers = new ArrayList<>();
+        List<Thread> producerThreads = new ArrayList<>();
+        List<Thread> consumerThreads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            producerThreads.add(new Thread(new BatchNumbersProducer(queue, poisonPill, 0, elementsPerProducer,
+                    batchSize, flushIntervalMicros, TimeUnit.MICROSECONDS)));
+        }
+        for (int j = 0; j < consumers; j++) {
+            BatchNumbersConsumer consumer = new BatchNumbersConsumer(queue, poisonPill, maxDrain, batchSize, false);
+            batchConsumers.add(consumer);
+            consumerThreads.add(new Thread(consumer));
+        }
+        long elapsed = runAndMeasure(producerThreads, consumerThreads, () -> {
+            for (int j = 0; j < consumers; j++) {
+                List<Integer> pill = new ArrayList<>(1);
+                pill.add(poisonPill);
+                queue.put(pill);
+            }
+        });
+        long received = 0;
+        for (BatchNumbersConsumer consumer : batchConsumers) {
+            received += consumer.getReceived();
+        }
+        return received * 1_000_000_000L / elapsed;
+    }
+
+    interface PoisonPillSender {
+        void send() throws InterruptedException;
+    }
+
+    // 启动所有线程，等生产者全部结束后再发送毒丸（ 每个消费者一颗 ），最后等待消费者结束，返回耗时（ 纳秒 ）
+    private static long runAndMeasure(List<Thread> producers, List<Thread> consumers, PoisonPillSender pills) throws InterruptedException {
+        long start = System.nanoTime();
+        for (Thread thread : consumers) {
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        pills.send();
+        for (Thread thread : consumers) {
+            thread.join();
+        }
+        return Math.max(1, System.nanoTime() - start);
     }
 }
 
@@ -84,10 +238,17 @@ class NumbersProducer implements Runnable {
 
     private final int poisonPillPerProducer;
 
+    private final int count;
+
     public NumbersProducer(BlockingQueue<Integer> queue, int poisonPill, int poisonPillPerProducer) {
+        this(queue, poisonPill, poisonPillPerProducer, 100);
+    }
+
+    public NumbersProducer(BlockingQueue<Integer> queue, int poisonPill, int poisonPillPerProducer, int count) {
         this.queue = queue;
         this.poisonPill = poisonPill;
         this.poisonPillPerProducer = poisonPillPerProducer;
+        this.count = count;
     }
 
     @Override
@@ -100,7 +261,7 @@ class NumbersProducer implements Runnable {
     }
 
     private void generateNumbers() throws InterruptedException {
-        for (int i = 0; i < 100; i++) {
+        for (int i = 0; i < count; i++) {
             queue.put(ThreadLocalRandom.current().nextInt(100));
         }
         for (int j = 0; j < poisonPillPerProducer; j++) {
@@ -134,4 +295,535 @@ class NumbersConsumer  implements Runnable {
             Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+}
+class BatchNumbersProducer implements Runnable {
+
+    // 上游数据源，为 null 时在本地生成随机数（ 生成不会停顿，每加一个元素检查一次时间就够了 ）
+    private final BlockingQueue<Integer> source;
+
+    private final BlockingQueue<List<Integer>> queue;
+
+    private final int poisonPill;
+
+    private final int poisonPillPerProducer;
+
+    private final int count;
+
+    private final int batchSize;
+
+    private final long flushIntervalNanos;
+
+    public BatchNumbersProducer(BlockingQueue<List<Integer>> queue, int poisonPill, int poisonPillPerProducer, int count,
+                                int batchSize, long flushInterval, TimeUnit unit) {
+        this(null, queue, poisonPill, poisonPillPerProducer, count, batchSize, flushInterval, unit);
+    }
+
+    // 从 source 取 count 个元素攒批
+    public BatchNumbersProducer(BlockingQueue<Integer> source, BlockingQueue<List<Integer>> queue, int poisonPill, int poisonPillPerProducer,
+                                int count, int batchSize, long flushInterval, TimeUnit unit) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.source = source;
+        this.queue = queue;
+        this.poisonPill = poisonPill;
+        this.poisonPillPerProducer = poisonPillPerProducer;
+        this.count = count;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+    }
+
+    @Override
+    public void run() {
+        try {
+            generateNumbers();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void generateNumbers() throws InterruptedException {
+        List<Integer> chunk = new ArrayList<>(batchSize);
+        // 当前这一批最晚的发送时间
+        long deadline = 0;
+        for (int i = 0; i < count; i++) {
+            Integer number;
+            if (source == null) {
+                number = ThreadLocalRandom.current().nextInt(100);
+            } else if (chunk.isEmpty()) {
+                number = source.take();
+            } else {
+                // 等下一个元素最多等到截止时间，超时说明上游暂时没有数据，先把已经攒下的发出去，再阻塞等下一个
+                number = source.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (number == null) {
+                    queue.put(chunk);
+                    chunk = new ArrayList<>(batchSize);
+                    number = source.take();
+                }
+            }
+            if (chunk.isEmpty()) {
+                deadline = System.nanoTime() + flushIntervalNanos;
+            }
+            chunk.add(number);
+            // 攒满一批，或者这一批等待时间超过 flushInterval，就整批放入队列，一次 put() 只加一次锁
+            if (chunk.size() >= batchSize || System.nanoTime() - deadline >= 0) {
+                queue.put(chunk);
+                chunk = new ArrayList<>(batchSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            queue.put(chunk);
+        }
+        // 毒丸单独成批，方便消费者识别
+        for (int j = 0; j < poisonPillPerProducer; j++) {
+            List<Integer> pill = new ArrayList<>(1);
+            pill.add(poisonPill);
+            queue.put(pill);
+        }
+    }
+}
+
+class BatchNumbersConsumer implements Runnable {
+
+    private final BlockingQueue<List<Integer>> queue;
+
+    private final int poisonPill;
+
+    // 每次唤醒最多 drainTo() 取走的 chunk 数
+    private final int maxChunksPerDrain;
+
+    private final boolean print;
+
+    private long received;
+
+    public BatchNumbersConsumer(BlockingQueue<List<Integer>> queue, int poisonPill, int maxDrain, int batchSize, boolean print) {
+        this.queue = queue;
+        this.poisonPill = poisonPill;
+        this.maxChunksPerDrain = Math.max(1, maxDrain / Math.max(1, batchSize));
+        this.print = print;
+    }
+
+    @Override
+    public void run() {
+        List<List<Integer>> drained = new ArrayList<>(maxChunksPerDrain);
+        try {
+            while (true) {
+                // 队列为空时阻塞等待第一批，之后 drainTo() 在一次加锁内取走剩余的批次
+                drained.add(queue.take());
+                queue.drainTo(drained, maxChunksPerDrain - 1);
+                int pills = 0;
+                long sum = 0;
+                int size = 0;
+                for (List<Integer> chunk : drained) {
+                    for (Integer number : chunk) {
+                        if (number == poisonPill) {
+                            pills++;
+                        } else {
+                            sum += number;
+                            size++;
+                        }
+                    }
+                }
+                drained.clear();
+                received += size;
+                if (print && size > 0) {
+                    System.out.println(Thread.currentThread().getName() + " batch size: " + size + " sum: " + sum);
+                }
+                if (pills > 0) {
+                    // 一次 drainTo() 可能取走了多颗毒丸，多出来的要放回去给其它消费者
+                    for (int i = 1; i < pills; i++) {
+                        List<Integer> pill = new ArrayList<>(1);
+                        pill.add(poisonPill);
+                        queue.put(pill);
+                    }
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 线程 join() 之后读取
+    public long getReceived() {
+        return received;
+    }
+}
+
+// 原生类型阻塞队列的公共部分：一把锁两个条件（ 和 ArrayBlockingQueue 一样 ），环形数组下标和关闭状态
+// 子类负责具体的 int[] / long[] 存储，所有下标相关的方法都要求调用方持有 lock
+abstract class PrimitiveBlockingQueue {
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    final Condition notEmpty = lock.newCondition();
+
+    final Condition notFull = lock.newCondition();
+
+    final int capacity;
+
+    // 队头下标
+    int head;
+
+    // 元素个数
+    int count;
+
+    boolean closed;
+
+    PrimitiveBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    // 等待有空位，返回写入下标
+    final int awaitPutIndex() throws InterruptedException {
+        while (count == capacity && !closed) {
+            notFull.await();
+        }
+        if (closed) {
+            throw new IllegalStateException("queue closed");
+        }
+        return tailIndex();
+    }
+
+    // putAll 的 offset、length 必须落在数组范围内，越界时在写入任何元素之前抛出 IndexOutOfBoundsException
+    static void checkRange(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", array length: " + arrayLength);
+        }
+    }
+
+    // 长度为 0 的 buffer 会让 drainTo() 永远返回 0，while ((n = drainTo(buf)) >= 0) 的循环就变成了空转
+    static void checkDrainBuffer(int bufferLength) {
+        if (bufferLength == 0) {
+            throw new IllegalArgumentException("drain buffer must not be empty");
+        }
+    }
+
+    final int tailIndex() {
+        int index = head + count;
+        return index >= capacity ? index - capacity : index;
+    }
+
+    final void afterPut(int n) {
+        count += n;
+        if (n == 1) {
+            notEmpty.signal();
+        } else {
+            notEmpty.signalAll();
+        }
+    }
+
+    // 等待有元素，队列已关闭并且取空时返回 false
+    final boolean awaitNotEmpty() throws InterruptedException {
+        while (count == 0 && !closed) {
+            notEmpty.await();
+        }
+        return count > 0;
+    }
+
+    final void afterTake(int n) {
+        head += n;
+        if (head >= capacity) {
+            head -= capacity;
+        }
+        count -= n;
+        if (n == 1) {
+            notFull.signal();
+        } else {
+            notFull.signalAll();
+        }
+    }
+
+    // 关闭队列：之后的 put 会抛出 IllegalStateException，消费者取完剩余元素后收到结束信号
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+class IntBlockingQueue extends PrimitiveBlockingQueue {
+
+    private final int[] items;
+
+    public IntBlockingQueue(int capacity) {
+        super(capacity);
+        this.items = new int[capacity];
+    }
+
+    public void putInt(int value) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            items[awaitPutIndex()] = value;
+            afterPut(1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 队列满时返回 false，队列已关闭时抛出 IllegalStateException
+    public boolean offerInt(int value) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("queue closed");
+            }
+            if (count == capacity) {
+                return false;
+            }
+            items[tailIndex()] = value;
+            afterPut(1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 批量写入，每次拿到锁后尽量多写
+    public void putAll(int[] values, int offset, int length) throws InterruptedException {
+        checkRange(values.length, offset, length);
+        int end = offset + length;
+        while (offset < end) {
+            lock.lockInterruptibly();
+            try {
+                int tail = awaitPutIndex();
+                int n = Math.min(end - offset, capacity - count);
+                for (int i = 0; i < n; i++) {
+                    items[tail] = values[offset + i];
+                    if (++tail == capacity) {
+                        tail = 0;
+                    }
+                }
+                afterPut(n);
+                offset += n;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 队列已关闭并且取空时抛出 NoSuchElementException
+    public int takeInt() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (!awaitNotEmpty()) {
+                throw new NoSuchElementException("queue closed");
+            }
+            int value = items[head];
+            afterTake(1);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 阻塞直到至少有一个元素，然后一次取走最多 buffer.length 个，返回取到的个数；队列已关闭并且取空时返回 -1
+    // buffer 长度为 0 时抛出 IllegalArgumentException
+    public int drainTo(int[] buffer) throws InterruptedException {
+        checkDrainBuffer(buffer.length);
+        lock.lockInterruptibly();
+        try {
+            if (!awaitNotEmpty()) {
+                return -1;
+            }
+            int n = Math.min(buffer.length, count);
+            int first = Math.min(n, capacity - head);
+            System.arraycopy(items, head, buffer, 0, first);
+            System.arraycopy(items, 0, buffer, first, n - first);
+            afterTake(n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+class LongBlockingQueue extends PrimitiveBlockingQueue {
+
+    private final long[] items;
+
+    public LongBlockingQueue(int capacity) {
+        super(capacity);
+        this.items = new long[capacity];
+    }
+
+    public void putLong(long value) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            items[awaitPutIndex()] = value;
+            afterPut(1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 队列满时返回 false，队列已关闭时抛出 IllegalStateException
+    public boolean offerLong(long value) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("queue closed");
+            }
+            if (count == capacity) {
+                return false;
+            }
+            items[tailIndex()] = value;
+            afterPut(1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 批量写入，每次拿到锁后尽量多写
+    public void putAll(long[] values, int offset, int length) throws InterruptedException {
+        checkRange(values.length, offset, length);
+        int end = offset + length;
+        while (offset < end) {
+            lock.lockInterruptibly();
+            try {
+                int tail = awaitPutIndex();
+                int n = Math.min(end - offset, capacity - count);
+                for (int i = 0; i < n; i++) {
+                    items[tail] = values[offset + i];
+                    if (++tail == capacity) {
+                        tail = 0;
+                    }
+                }
+                afterPut(n);
+                offset += n;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 队列已关闭并且取空时抛出 NoSuchElementException
+    public long takeLong() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (!awaitNotEmpty()) {
+                throw new NoSuchElementException("queue closed");
+            }
+            long value = items[head];
+            afterTake(1);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 阻塞直到至少有一个元素，然后一次取走最多 buffer.length 个，返回取到的个数；队列已关闭并且取空时返回 -1
+    // buffer 长度为 0 时抛出 IllegalArgumentException
+    public int drainTo(long[] buffer) throws InterruptedException {
+        checkDrainBuffer(buffer.length);
+        lock.lockInterruptibly();
+        try {
+            if (!awaitNotEmpty()) {
+                return -1;
+            }
+            int n = Math.min(buffer.length, count);
+            int first = Math.min(n, capacity - head);
+            System.arraycopy(items, head, buffer, 0, first);
+            System.arraycopy(items, 0, buffer, first, n - first);
+            afterTake(n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+class IntNumbersProducer implements Runnable {
+
+    private final IntBlockingQueue queue;
+
+    // 最后一个结束的生产者负责关闭队列
+    private final AtomicInteger activeProducers;
+
+    private final int count;
+
+    public IntNumbersProducer(IntBlockingQueue queue, AtomicInteger activeProducers, int count) {
+        this.queue = queue;
+        this.activeProducers = activeProducers;
+        this.count = count;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < count; i++) {
+                queue.putInt(ThreadLocalRandom.current().nextInt(100));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (activeProducers.decrementAndGet() == 0) {
+                queue.close();
+            }
+        }
+    }
+}
+
+class IntNumbersConsumer implements Runnable {
+
+    private final IntBlockingQueue queue;
+
+    private final int[] buffer;
+
+    public IntNumbersConsumer(IntBlockingQueue queue, int maxDrain) {
+        this.queue = queue;
+        this.buffer = new int[maxDrain];
+    }
+
+    @Override
+    public void run() {
+        try {
+            int n;
+            while ((n = queue.drainTo(buffer)) >= 0) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += buffer[i];
+                }
+                System.out.println(Thread.currentThread().getName() + " int batch size: " + n + " sum: " + sum);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,8 +1,34 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class CompletableFutureDemo {
@@ -140,6 +166,36 @@ public class CompletableFutureDemo {
         System.out.println("Hello World Hi".equals(allOfResult));
         // CompletableFuture.join() 方法类似于 get() 方法，但是如果 Future 未正常完成，它会抛出未经检查的异常，这种机制，使得它可以作为 Stream.map() 的参数。
 
+        // allOf() 适合几个 Future，但要对几千个下游服务发起调用时，一下子发起所有调用会占满线程和内存，而且要等最慢的一个完成才能处理结果。
+        // AsyncFanOut 限制同一时刻还没完成的调用数，每个调用一完成就处理它的结果，第一个失败或者调用者取消时取消其余的调用。
+        // 见 class AsyncFanOut
+        ExecutorService lookupExecutor = Executors.newFixedThreadPool(8);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxObservedInFlight = new AtomicInteger();
+        List<Integer> keys = IntStream.range(0, 5000).boxed().collect(Collectors.toList());
+        List<String> lookups = AsyncFanOut.collect(keys, key -> {
+            maxObservedInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> "value-" + key, lookupExecutor)
+                    .whenComplete((v, e) -> inFlight.decrementAndGet());
+        }, 64).get();
+        System.out.println(lookups.size() == 5000 && "value-4999".equals(lookups.get(4999))); // true
+        System.out.println(maxObservedInFlight.get() <= 64); // true
+        // 一个调用失败时，其余还没完成的调用会被取消
+        CompletableFuture<Void> failedFanOut = AsyncFanOut.<Integer, String>start(keys.iterator(), key -> key == 10
+                ? CompletableFuture.supplyAsync(() -> {
+                    throw new IllegalStateException("lookup failed: " + key);
+                }, lookupExecutor)
+                : new CompletableFuture<>(), 64, (key, value) -> {
+        }).completion();
+        try {
+            failedFanOut.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            System.out.println(e.getCause() instanceof IllegalStateException); // true
+        } catch (TimeoutException e) {
+            System.out.println(false);
+        }
+        lookupExecutor.shutdown();
+
 
         // 七、处理错误
         // 对于异步计算步骤链中的错误处理，惯用的方法是调整 throw/catch 。
@@ -154,6 +210,42 @@ public class CompletableFutureDemo {
         }).handle((s, t) -> s != null ? s : "Hello, Stranger");
         System.out.println("Hello, Stranger".equals(exceptionHandlingCompletableFuture.get()));
         // 上面这个示例中，我们使用 handle() 方法在问候语的异步计算完成时提供默认值，因为没有提供 name 。
+
+        // 上面的例子都没有超时：下游一直不返回的话，整个链就一直挂着。Java 9 才有 orTimeout() 和 completeOnTimeout()，
+        // 在 Java 8 上可以使用 AsyncCalls，它还提供了对冲请求和带随机抖动的退避重试，用来降低长尾延迟。
+        // 见 class AsyncCalls
+        ExecutorService callExecutor = Executors.newFixedThreadPool(4);
+        CompletableFuture<String> neverCompletes = new CompletableFuture<>();
+        System.out.println("Hello, Timeout".equals(
+                AsyncCalls.completeOnTimeout(neverCompletes, "Hello, Timeout", 50, TimeUnit.MILLISECONDS).get())); // true
+        // 前两次尝试失败，第三次成功，每次重试前等待 [0, 10ms * 2^(n-1)] 之间的随机时间
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> retried = AsyncCalls.retry(() -> CompletableFuture.supplyAsync(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("temporarily unavailable");
+            }
+            return "Hello, Retry";
+        }, callExecutor), 5, 10, 100, TimeUnit.MILLISECONDS, e -> e instanceof IllegalStateException);
+        System.out.println("Hello, Retry".equals(retried.get())); // true
+        // 每 10 次调用有 1 次要 200 毫秒，其余 5 毫秒；超过 p95 延迟还没返回就发起备份尝试，取最先返回的结果
+        AsyncCalls.Hedger hedger = new AsyncCalls.Hedger(20, TimeUnit.MILLISECONDS, 95, 2);
+        AtomicInteger hedgedCalls = new AtomicInteger();
+        long slowest = 0;
+        for (int i = 0; i < 100; i++) {
+            long start = System.nanoTime();
+            hedger.call(() -> CompletableFuture.supplyAsync(() -> {
+                try {
+                    Thread.sleep(hedgedCalls.incrementAndGet() % 10 == 0 ? 200 : 5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "Hello, Hedge";
+            }, callExecutor)).get();
+            slowest = Math.max(slowest, System.nanoTime() - start);
+        }
+        // 最慢的一次调用也远小于 200 毫秒
+        System.out.println(slowest < TimeUnit.MILLISECONDS.toNanos(100)); // true
+        callExecutor.shutdown();
         // 作为替代方案，假设我们想要手动使用某个值完成 Future ，就像第一个示例中所示，但同时又需要有能力通过异常完成它。那么，可以使用 completeExceptionally() 方法。
         CompletableFuture<String> completeExceptionallyCompletableFuture = new CompletableFuture<>();
         completeExceptionallyCompletableFuture.completeExceptionally(new RuntimeException("Calculation Failed"));
@@ -209,3 +301,492 @@ public class CompletableFutureDemo {
 
 
 }
+
+// 限制并发数的异步扇出/扇入：对大量输入逐个调用返回 CompletableFuture 的异步函数，同一时刻最多 maxInFlight 个调用还没完成，
+// 每个调用一完成就把结果交给 onResult，而不是像 allOf() 那样等全部完成再处理。
+// 1、不创建线程，也不阻塞任何线程：一个调用完成之后，在完成它的线程上发起下一个调用；
+// 2、发起调用、计数和回调 onResult 都在一个串行化的 drain() 循环里执行（ wip 计数器保证同一时刻只有一个线程在循环里 ），
+//    所以 inputs 的 Iterator 和 onResult 不需要是线程安全的，onResult 也不会被并发调用；同步完成的调用不会造成递归调用和栈溢出；
+// 3、completion() 返回的 Future 在全部完成时正常完成；第一个失败的调用（ 或者 onResult 抛出的异常 ）会让它异常完成；
+//    调用者取消它、或者它因为失败而完成时，不再发起新的调用，并取消所有还没完成的调用。
+// 输入是惰性读取的，一次只有 maxInFlight 个 Future 存在，几千个下游调用也不会一下子占满内存。
+final class AsyncFanOut<T, R> {
+
+    private final Iterator<? extends T> inputs;
+
+    private final Function<? super T, ? extends CompletionStage<? extends R>> call;
+
+    private final int maxInFlight;
+
+    private final BiConsumer<? super T, ? super R> onResult;
+
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    // 已经完成、等待 drain() 处理的调用
+    private final ConcurrentLinkedQueue<Call> completed = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // 以下字段只在 drain() 中读写
+
+    private final Set<Call> outstanding = new HashSet<>();
+
+    private AsyncFanOut(Iterator<? extends T> inputs, Function<? super T, ? extends CompletionStage<? extends R>> call,
+                        int maxInFlight, BiConsumer<? super T, ? super R> onResult) {
+        this.inputs = inputs;
+        this.call = call;
+        this.maxInFlight = maxInFlight;
+        this.onResult = onResult;
+    }
+
+    public static <T, R> AsyncFanOut<T, R> start(Iterator<? extends T> inputs,
+                                                 Function<? super T, ? extends CompletionStage<? extends R>> call,
+                                                 int maxInFlight, BiConsumer<? super T, ? super R> onResult) {
+        Objects.requireNonNull(inputs, "inputs");
+        Objects.requireNonNull(call, "call");
+        Objects.requireNonNull(onResult, "onResult");
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        AsyncFanOut<T, R> fanOut = new AsyncFanOut<>(inputs, call, maxInFlight, onResult);
+        // 不管是全部完成、失败还是被调用者取消，都再 drain 一次，把还没完成的调用取消掉
+        fanOut.completion.whenComplete((v, e) -> fanOut.drain());
+        fanOut.drain();
+        return fanOut;
+    }
+
+    // 按输入的顺序收集所有结果，任何一个调用失败都会让返回的 Future 失败并取消其余的调用
+    public static <T, R> CompletableFuture<List<R>> collect(List<? extends T> inputs,
+                                                            Function<? super T, ? extends CompletionStage<? extends R>> call,
+                                                            int maxInFlight) {
+        Objects.requireNonNull(call, "call");
+        List<R> results = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+        Iterator<Integer> indexes = new Iterator<Integer>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < inputs.size();
+            }
+
+            @Override
+            public Integer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return next++;
+            }
+        };
+        AsyncFanOut<Integer, R> fanOut = start(indexes, i -> call.apply(inputs.get(i)), maxInFlight, results::set);
+        CompletableFuture<Void> completion = fanOut.completion();
+        CompletableFuture<List<R>> result = completion.thenApply(v -> results);
+        // 取消返回的 Future 时也要取消扇出本身
+        result.whenComplete((list, e) -> {
+            if (result.isCancelled()) {
+                completion.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    public void cancel() {
+        completion.cancel(false);
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            for (Call done = completed.poll(); done != null; done = completed.poll()) {
+                outstanding.remove(done);
+                if (completion.isDone()) {
+                    continue;
+                }
+                if (done.error != null) {
+                    completion.completeExceptionally(done.error);
+                    continue;
+                }
+                try {
+                    onResult.accept(done.input, done.result);
+                } catch (Throwable e) {
+                    completion.completeExceptionally(e);
+                }
+            }
+            if (completion.isDone()) {
+                // 取消时回调会把调用放进 completed，由下一轮循环（ 或者本轮的 wip 检查 ）处理，不会修改正在遍历的 outstanding
+                for (Call pending : new ArrayList<>(outstanding)) {
+                    pending.cancel();
+                }
+            } else {
+                // inputs 的 hasNext()/next() 也可能抛出异常，必须留在循环里让 wip 正常递减，
+                // 异常完成 completion 之后由下一轮循环取消还没完成的调用
+                try {
+                    while (outstanding.size() < maxInFlight && inputs.hasNext()) {
+                        launch(inputs.next());
+                        if (completion.isDone()) {
+                            break;
+                        }
+                    }
+                    if (outstanding.isEmpty() && completed.isEmpty() && !inputs.hasNext()) {
+                        completion.complete(null);
+                    }
+                } catch (Throwable e) {
+                    completion.completeExceptionally(e);
+                }
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    private void launch(T input) {
+        CompletableFuture<? extends R> future;
+        try {
+            future = Objects.requireNonNull(call.apply(input), "call returned null").toCompletableFuture();
+        } catch (Throwable e) {
+            completion.completeExceptionally(e);
+            return;
+        }
+        Call pending = new Call(input, future);
+        outstanding.add(pending);
+        // 同步完成的调用在这里直接进入 completed，由当前的 drain() 循环处理
+        pending.future.whenComplete(pending);
+    }
+
+    // 一个已经发起的调用，同时也是它的完成回调
+    private final class Call implements BiConsumer<R, Throwable> {
+
+        private final T input;
+
+        private final CompletableFuture<? extends R> future;
+
+        private R result;
+
+        private Throwable error;
+
+        Call(T input, CompletableFuture<? extends R> future) {
+            this.input = input;
+            this.future = future;
+        }
+
+        void cancel() {
+            future.cancel(true);
+        }
+
+        // ConcurrentLinkedQueue 的 offer/poll 保证 result 和 error 对 drain() 可见
+        @Override
+        public void accept(R value, Throwable e) {
+            result = value;
+            error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            completed.offer(this);
+            drain();
+        }
+    }
+}
+
+// 在 Java 8 上给 CompletableFuture 加上超时、对冲请求（ hedged request ）和带随机抖动的退避重试，返回的都是普通的 CompletableFuture。
+// Java 9 才有 orTimeout() / completeOnTimeout()，这里用一个共享的守护线程 ScheduledThreadPoolExecutor 实现，
+// 并打开 removeOnCancelPolicy：绝大多数超时在到期前就被取消了，取消时立刻从堆中移除，不会堆积。
+// 定时器线程只负责到期时完成 Future 或者发起下一次尝试，发起尝试的 Supplier 不能阻塞，真正的工作应该交给其它线程池。
+final class AsyncCalls {
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "async-calls-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private AsyncCalls() {
+    }
+
+    // 和 Java 9 的 future.orTimeout() 一样：超时之前没有完成的话，以 TimeoutException 完成 future 本身并返回它
+    public static <T> CompletableFuture<T> orTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        Objects.requireNonNull(future, "future");
+        if (!future.isDone()) {
+            ScheduledFuture<?> timer = TIMER.schedule(
+                    () -> future.completeExceptionally(new TimeoutException("timed out after " + timeout + " " + unit)),
+                    timeout, unit);
+            future.whenComplete((v, e) -> timer.cancel(false));
+        }
+        return future;
+    }
+
+    // 和 Java 9 的 future.completeOnTimeout() 一样：超时之前没有完成的话，以 value 完成 future 本身并返回它
+    public static <T> CompletableFuture<T> completeOnTimeout(CompletableFuture<T> future, T value, long timeout, TimeUnit unit) {
+        Objects.requireNonNull(future, "future");
+        if (!future.isDone()) {
+            ScheduledFuture<?> timer = TIMER.schedule(() -> future.complete(value), timeout, unit);
+            future.whenComplete((v, e) -> timer.cancel(false));
+        }
+        return future;
+    }
+
+    // 失败且 retryable 返回 true 时重试，最多尝试 maxAttempts 次；
+    // 第 n 次重试前等待 [0, min(maxDelay, baseDelay * 2^(n-1))] 之间的随机时间（ full jitter ），避免大量调用者同时重试。
+    // 取消返回的 Future 时停止重试，并取消正在进行的尝试
+    public static <T> CompletableFuture<T> retry(Supplier<? extends CompletionStage<T>> call, int maxAttempts,
+                                                 long baseDelay, long maxDelay, TimeUnit unit,
+                                                 Predicate<? super Throwable> retryable) {
+        Objects.requireNonNull(call, "call");
+        Objects.requireNonNull(retryable, "retryable");
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        if (baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("require 0 <= baseDelay <= maxDelay: " + baseDelay + ", " + maxDelay);
+        }
+        Retry<T> retry = new Retry<>(call, maxAttempts, unit.toNanos(baseDelay), unit.toNanos(maxDelay), retryable);
+        retry.attempt(1);
+        return retry.result;
+    }
+
+    private static <T> CompletableFuture<T> start(Supplier<? extends CompletionStage<T>> call) {
+        try {
+            return Objects.requireNonNull(call.get(), "call returned null").toCompletableFuture();
+        } catch (Throwable e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static final class Retry<T> {
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private final Supplier<? extends CompletionStage<T>> call;
+
+        private final int maxAttempts;
+
+        private final long baseDelayNanos;
+
+        private final long maxDelayNanos;
+
+        private final Predicate<? super Throwable> retryable;
+
+        // 正在进行的尝试和等待中的重试，用于取消
+        private volatile CompletableFuture<T> current;
+
+        private volatile ScheduledFuture<?> timer;
+
+        Retry(Supplier<? extends CompletionStage<T>> call, int maxAttempts, long baseDelayNanos, long maxDelayNanos,
+              Predicate<? super Throwable> retryable) {
+            this.call = call;
+            this.maxAttempts = maxAttempts;
+            this.baseDelayNanos = baseDelayNanos;
+            this.maxDelayNanos = maxDelayNanos;
+            this.retryable = retryable;
+            result.whenComplete((v, e) -> {
+                if (result.isCancelled()) {
+                    ScheduledFuture<?> pending = timer;
+                    if (pending != null) {
+                        pending.cancel(false);
+                    }
+                    CompletableFuture<T> attempt = current;
+                    if (attempt != null) {
+                        attempt.cancel(true);
+                    }
+                }
+            });
+        }
+
+        void attempt(int n) {
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<T> attempt = start(call);
+            current = attempt;
+            attempt.whenComplete((value, error) -> {
+                if (error == null) {
+                    result.complete(value);
+                    return;
+                }
+                Throwable cause = unwrap(error);
+                if (n >= maxAttempts || result.isDone() || !retryable.test(cause)) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                // baseDelay * 2^(n-1)，溢出或超过 maxDelay 时取 maxDelay
+                int shift = Math.min(n - 1, 62);
+                long cap = baseDelayNanos > (maxDelayNanos >> shift) ? maxDelayNanos : baseDelayNanos << shift;
+                long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+                timer = TIMER.schedule(() -> attempt(n + 1), delay, TimeUnit.NANOSECONDS);
+                if (result.isDone()) {
+                    timer.cancel(false);
+                }
+            });
+        }
+    }
+
+    // 对冲请求：先发起一次尝试，如果过了 「 最近成功调用的第 percentile 百分位延迟 」 还没有成功，再发起一次备份尝试，取最先成功的结果，
+    // 其余的尝试会被取消；某次尝试失败时立刻发起下一次，所有尝试都失败时以第一个异常失败，最多尝试 maxAttempts 次。
+    // 只在 p95 之后才对冲，额外的请求量大约只有 5%，却能砍掉由个别慢请求造成的长尾。
+    // 延迟取自最近 WINDOW 次成功调用（ 从发起那次尝试算起 ），每 RECOMPUTE_INTERVAL 次重新计算一次，样本不够时使用 initialDelay。
+    // 一个 Hedger 对应一种调用，不同下游的延迟分布不同，应该各用各的
+    static final class Hedger {
+
+        private static final int WINDOW = 1024;
+
+        private static final int RECOMPUTE_INTERVAL = 64;
+
+        private static final int MIN_SAMPLES = 32;
+
+        private final double percentile;
+
+        private final int maxAttempts;
+
+        private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+
+        private final AtomicLong sampleCount = new AtomicLong();
+
+        private volatile long hedgeDelayNanos;
+
+        Hedger(long initialDelay, TimeUnit unit, double percentile, int maxAttempts) {
+            if (initialDelay < 0) {
+                throw new IllegalArgumentException("initialDelay must not be negative: " + initialDelay);
+            }
+            if (!(percentile > 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("percentile must be in (0, 100]: " + percentile);
+            }
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+            }
+            this.hedgeDelayNanos = unit.toNanos(initialDelay);
+            this.percentile = percentile;
+            this.maxAttempts = maxAttempts;
+        }
+
+        public <T> CompletableFuture<T> call(Supplier<? extends CompletionStage<T>> attempt) {
+            Objects.requireNonNull(attempt, "attempt");
+            Hedge<T> hedge = new Hedge<>(attempt);
+            hedge.launch();
+            return hedge.result;
+        }
+
+        public long getHedgeDelayNanos() {
+            return hedgeDelayNanos;
+        }
+
+        private void record(long nanos) {
+            long n = sampleCount.getAndIncrement();
+            samples.set((int) (n & (WINDOW - 1)), nanos);
+            long count = n + 1;
+            if (count >= MIN_SAMPLES && count % RECOMPUTE_INTERVAL == 0 || count == MIN_SAMPLES) {
+                int size = (int) Math.min(count, WINDOW);
+                long[] sorted = new long[size];
+                for (int i = 0; i < size; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                hedgeDelayNanos = sorted[Math.max(0, (int) Math.ceil(size * percentile / 100) - 1)];
+            }
+        }
+
+        // 一次对冲调用的状态，attempts、launched、failed、firstError 和 timer 由 this 的锁保护
+        private final class Hedge<T> {
+
+            final CompletableFuture<T> result = new CompletableFuture<>();
+
+            private final Supplier<? extends CompletionStage<T>> attempt;
+
+            private final List<CompletableFuture<T>> attempts = new ArrayList<>(maxAttempts);
+
+            private int launched;
+
+            private int failed;
+
+            private Throwable firstError;
+
+            private ScheduledFuture<?> timer;
+
+            Hedge(Supplier<? extends CompletionStage<T>> attempt) {
+                this.attempt = attempt;
+                result.whenComplete((v, e) -> cancelRest());
+            }
+
+            void launch() {
+                synchronized (this) {
+                    if (result.isDone() || launched >= maxAttempts) {
+                        return;
+                    }
+                    launched++;
+                    if (timer != null) {
+                        timer.cancel(false);
+                        timer = null;
+                    }
+                    if (launched < maxAttempts) {
+                        timer = TIMER.schedule(this::launch, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+                long start = System.nanoTime();
+                CompletableFuture<T> future = start(attempt);
+                boolean cancel;
+                synchronized (this) {
+                    attempts.add(future);
+                    cancel = result.isDone();
+                }
+                if (cancel) {
+                    future.cancel(true);
+                    return;
+                }
+                future.whenComplete((value, error) -> onComplete(start, value, error));
+            }
+
+            private void onComplete(long start, T value, Throwable error) {
+                if (error == null) {
+                    if (result.complete(value)) {
+                        record(System.nanoTime() - start);
+                    }
+                    return;
+                }
+                boolean relaunch = false;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    failed++;
+                    if (firstError == null) {
+                        firstError = unwrap(error);
+                    }
+                    if (launched < maxAttempts) {
+                        relaunch = true;
+                    } else if (failed == launched) {
+                        failure = firstError;
+                    }
+                }
+                if (relaunch) {
+                    launch();
+                } else if (failure != null) {
+                    result.completeExceptionally(failure);
+                }
+            }
+
+            // 结果确定之后（ 成功、失败或者被调用者取消 ）取消其余的尝试和还没发起的备份尝试
+            private void cancelRest() {
+                List<CompletableFuture<T>> rest;
+                synchronized (this) {
+                    if (timer != null) {
+                        timer.cancel(false);
+                        timer = null;
+                    }
+                    rest = new ArrayList<>(attempts);
+                }
+                for (CompletableFuture<T> future : rest) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,18 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ExecutorServiceDemo {
     public static void main(String[] args) throws ExecutionException, InterruptedException, TimeoutException {
@@ -19,6 +31,27 @@ public class ExecutorServiceDemo {
         // 例如，ThreadPoolExecutor 类实现了 ExecutorService 接口并提供了一些构造函数用于配置执行程序服务及其内部池。
         ExecutorService executorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
         // 你可能会注意到，上面的代码与工厂方法 newSingleThreadExecutor() 的 源代码 非常相似。对于大多数情况，不需要详细的手动配置。
+        // 不过这个执行器的队列是先进先出的无界队列，过载时会积压大量任务，等轮到它们执行时调用者可能早就超时放弃了，执行它们只是在浪费 CPU。
+        // DeadlineExecutor 允许提交任务时指定超时时间和优先级，按截止时间最早优先执行，过期的任务不再执行，排队时间过长时丢弃低优先级的任务。
+        // 见 class DeadlineExecutor
+        DeadlineExecutor deadlineExecutor = new DeadlineExecutor(1, 1000);
+        List<Future<String>> deadlineFutures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            deadlineFutures.add(deadlineExecutor.submit(() -> {
+                TimeUnit.MILLISECONDS.sleep(50);
+                return "Task's execution";
+            }, 120, TimeUnit.MILLISECONDS, DeadlineExecutor.DEFAULT_PRIORITY));
+        }
+        // 单个线程每 50 毫秒只能完成一个任务，前几个任务之后的任务都在截止时间之后才轮到，直接以 TimeoutException 失败，不会执行
+        for (Future<String> deadlineFuture : deadlineFutures) {
+            try {
+                deadlineFuture.get();
+            } catch (ExecutionException e) {
+                // TimeoutException
+            }
+        }
+        System.out.println(deadlineExecutor.getExpiredCount() > 0); // true
+        deadlineExecutor.shutdown();
 
 
         // 二、将任务分配给 ExecutorService
@@ -136,6 +169,52 @@ public class ExecutorServiceDemo {
         ScheduledFuture<?> scheduledWithFixedDelayScheduledFuture = singleThreadScheduledExecutorService.scheduleWithFixedDelay(runnable, 100, 150, TimeUnit.MILLISECONDS);
         // 根据scheduleAtFixedRate() 和 scheduleWithFixedDelay() 方法契约，在任务执行期间，如果 ExecutorService 终止了或任务抛出了异常，那么任务将自动结束。
 
+        // Executors 创建的 ScheduledExecutorService 是 ScheduledThreadPoolExecutor，内部的 DelayedWorkQueue 是一个二叉堆，
+        // 安排和取消任务都是 O(log n)，默认情况下被取消的任务还会留在堆里直到到期。
+        // 需要同时挂着大量超时任务（ 比如每个请求一个超时，其中绝大部分会在到期前被取消 ）时，可以使用分层时间轮，安排和取消任务都是 O(1)。
+        // 见 class TimingWheelScheduler
+        TimingWheelScheduler timingWheelScheduler = new TimingWheelScheduler();
+        ScheduledFuture<String> wheelCallableFuture = timingWheelScheduler.schedule(callable, 100, TimeUnit.MILLISECONDS);
+        List<ScheduledFuture<?>> timeouts = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            timeouts.add(timingWheelScheduler.schedule(runnable, 10 + i % 1000, TimeUnit.SECONDS));
+        }
+        timeouts.forEach(timeout -> timeout.cancel(false));
+        CountDownLatch wheelLatch = new CountDownLatch(3);
+        ScheduledFuture<?> wheelFixedRateFuture = timingWheelScheduler.scheduleAtFixedRate(wheelLatch::countDown, 10, 10, TimeUnit.MILLISECONDS);
+        System.out.println("Task's execution".equals(wheelCallableFuture.get())); // true
+        System.out.println(wheelLatch.await(1, TimeUnit.SECONDS)); // true
+        wheelFixedRateFuture.cancel(false);
+        timingWheelScheduler.shutdown();
+        System.out.println(timingWheelScheduler.awaitTermination(1, TimeUnit.SECONDS)); // true
+
+        // 单线程的执行器保证了顺序，固定大小的线程池提供了并行，但很多场景需要的是「 同一个账户的事件按顺序处理，不同账户之间并行处理 」。
+        // 每个 key 一个单线程执行器会创建太多线程，所有 key 共用一个单线程执行器又没有并行。
+        // KeyedOrderedExecutor 为每个 key 维护一个轻量的队列，同一个 key 的任务按提交顺序逐个执行，不同 key 的任务在同一个线程池上并发执行。
+        // 见 class KeyedOrderedExecutor
+        ExecutorService keyedWorkers = Executors.newFixedThreadPool(4);
+        KeyedOrderedExecutor<String> keyedExecutor = new KeyedOrderedExecutor<>(keyedWorkers, 1000);
+        ConcurrentHashMap<String, List<Integer>> events = new ConcurrentHashMap<>();
+        List<Future<?>> keyedFutures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String account = "account-" + i % 10;
+            int event = i;
+            keyedFutures.add(keyedExecutor.submit(account, () -> events.computeIfAbsent(account, k -> new ArrayList<>()).add(event)));
+        }
+        for (Future<?> keyedFuture : keyedFutures) {
+            keyedFuture.get();
+        }
+        // 每个账户的事件都按提交的顺序处理
+        System.out.println(events.values().stream().allMatch(list -> {
+            for (int i = 1; i < list.size(); i++) {
+                if (list.get(i - 1) > list.get(i)) {
+                    return false;
+                }
+            }
+            return list.size() == 100;
+        })); // true
+        keyedWorkers.shutdown();
+
         // 四、ExecutorService 或 Fork/Join
         // Fork/Join 是 Java 7 提供的新框架，在 Java 7 发布之后，许多开发人员都作出了将 ExecutorService 框架替换为 fork/join 框架的决定。
         // 但，这并不总是正确的决定。尽管 fork/join 使用起来更加简单且频繁使用时更带来更快的性能，但开发人员对并发执行的控制量也有所减少。
@@ -161,3 +240,1160 @@ public class ExecutorServiceDemo {
 
     }
 }
+
+// 按 key 串行、不同 key 之间并行的执行器：同一个 key 的任务严格按提交顺序逐个执行，不同 key 的任务共享一个工作线程池并发执行。
+// 1、每个 key 一个轻量的队列（ 一个 ArrayDeque 加几个字段 ），第一个任务提交时才创建，任务执行完、队列空了就从 map 中移除，
+//    所以只有正在处理的 key 占用内存，key 的总数可以非常大；
+// 2、同一时刻每个 key 的队列最多在一个工作线程上执行，执行完 maxBatch 个任务后如果还有任务，就把自己重新提交到线程池的队尾，
+//    一个繁忙的 key 不会一直占着一个工作线程，其它 key 也有机会执行；
+// 3、每个 key 最多积压 maxPendingPerKey 个任务，满了之后 submit() 阻塞调用者，trySubmit() 最多等待指定的时间，超时抛出 RejectedExecutionException。
+// 工作线程池的生命周期由调用者管理。
+class KeyedOrderedExecutor<K> {
+
+    static final int DEFAULT_MAX_BATCH = 16;
+
+    private final ConcurrentHashMap<K, KeyQueue> queues = new ConcurrentHashMap<>();
+
+    private final Executor workers;
+
+    private final int maxPendingPerKey;
+
+    private final int maxBatch;
+
+    public KeyedOrderedExecutor(Executor workers, int maxPendingPerKey) {
+        this(workers, maxPendingPerKey, DEFAULT_MAX_BATCH);
+    }
+
+    public KeyedOrderedExecutor(Executor workers, int maxPendingPerKey, int maxBatch) {
+        Objects.requireNonNull(workers, "workers");
+        if (maxPendingPerKey <= 0) {
+            throw new IllegalArgumentException("maxPendingPerKey must be positive: " + maxPendingPerKey);
+        }
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        }
+        this.workers = workers;
+        this.maxPendingPerKey = maxPendingPerKey;
+        this.maxBatch = maxBatch;
+    }
+
+    // 这个 key 积压的任务已满时阻塞，直到有空位
+    public <V> Future<V> submit(K key, Callable<V> task) throws InterruptedException {
+        Objects.requireNonNull(task, "task");
+        FutureTask<V> future = new FutureTask<>(task);
+        enqueue(key, future, -1);
+        return future;
+    }
+
+    public Future<?> submit(K key, Runnable task) throws InterruptedException {
+        Objects.requireNonNull(task, "task");
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        enqueue(key, future, -1);
+        return future;
+    }
+
+    // 这个 key 积压的任务已满时最多等待 timeout，仍然没有空位就抛出 RejectedExecutionException
+    public <V> Future<V> trySubmit(K key, Callable<V> task, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(task, "task");
+        FutureTask<V> future = new FutureTask<>(task);
+        enqueue(key, future, Math.max(0, unit.toNanos(timeout)));
+        return future;
+    }
+
+    // 当前有任务在排队或执行的 key 的数量
+    public int getActiveKeyCount() {
+        return queues.size();
+    }
+
+    // timeoutNanos 小于 0 表示一直等待
+    private void enqueue(K key, FutureTask<?> task, long timeoutNanos) throws InterruptedException {
+        Objects.requireNonNull(key, "key");
+        long deadline = System.nanoTime() + timeoutNanos;
+        retry:
+        while (true) {
+            KeyQueue queue = queues.computeIfAbsent(key, KeyQueue::new);
+            boolean start;
+            synchronized (queue) {
+                // 拿到锁之前这个队列已经空了并且被移除，重新取一个
+                if (queue.released) {
+                    continue;
+                }
+                while (queue.tasks.size() >= maxPendingPerKey) {
+                    queue.waiters++;
+                    try {
+                        if (timeoutNanos < 0) {
+                            queue.wait();
+                        } else {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                throw new RejectedExecutionException("too many pending tasks for key " + key);
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(queue, remaining);
+                        }
+                    } finally {
+                        queue.waiters--;
+                    }
+                    // 等待期间工作线程可能已经执行完这个队列并把它从 map 中移除，别的提交者可能已经为这个 key 建了新的队列，
+                    // 再往这个队列里放任务就会和新队列并发执行，必须重新取
+                    if (queue.released) {
+                        continue retry;
+                    }
+                }
+                queue.tasks.add(task);
+                start = !queue.scheduled;
+                queue.scheduled = true;
+            }
+            if (start) {
+                try {
+                    workers.execute(queue);
+                } catch (RejectedExecutionException e) {
+                    // 拿到锁之前别的提交者可能已经往这个队列里放了任务，它们都不会再被执行，和工作线程池拒绝时一样全部取消
+                    synchronized (queue) {
+                        queue.cancelAll();
+                    }
+                    throw e;
+                }
+            }
+            return;
+        }
+    }
+
+    // 一个 key 的任务队列，同一时刻最多在一个工作线程上执行
+    private final class KeyQueue implements Runnable {
+
+        private final K key;
+
+        // 以下字段都由 KeyQueue 自己的锁保护
+        private final ArrayDeque<FutureTask<?>> tasks = new ArrayDeque<>();
+
+        // 已经交给了工作线程池（ 排队中或执行中 ）
+        private boolean scheduled;
+
+        // 已经从 map 中移除，不能再往里放任务
+        private boolean released;
+
+        private int waiters;
+
+        KeyQueue(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < maxBatch; i++) {
+                FutureTask<?> task;
+                synchronized (this) {
+                    task = poll();
+                    if (task == null) {
+                        scheduled = false;
+                        releaseIfIdle();
+                        return;
+                    }
+                }
+                // FutureTask 会捕获任务抛出的异常，一个任务失败不影响后面的任务
+                task.run();
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    releaseIfIdle();
+                    return;
+                }
+            }
+            // 还有任务，排到线程池的队尾，让其它 key 也有机会执行
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    cancelAll();
+                }
+            }
+        }
+
+        // 工作线程池拒绝执行时调用，取消所有排队的任务并移除这个队列，唤醒等待的提交者让它们重新取队列
+        private void cancelAll() {
+            for (FutureTask<?> task = tasks.poll(); task != null; task = tasks.poll()) {
+                task.cancel(false);
+            }
+            scheduled = false;
+            releaseIfIdle();
+            notifyAll();
+        }
+
+        private FutureTask<?> poll() {
+            FutureTask<?> task = tasks.poll();
+            if (task != null && waiters > 0) {
+                notifyAll();
+            }
+            return task;
+        }
+
+        private void releaseIfIdle() {
+            if (tasks.isEmpty() && !scheduled) {
+                released = true;
+                queues.remove(key, this);
+            }
+        }
+    }
+}
+
+// 分层时间轮（ hierarchical timing wheel ）实现的 ScheduledExecutorService，
+// 和 ScheduledThreadPoolExecutor 相比，schedule 和 cancel 都是 O(1)，被取消的任务在下一个 tick 就从时间轮上摘掉，不会一直留在队列里。
+// 1、时间按 tick 划分，第 0 层有 wheelSize 个槽，每个槽一个 tick；第 L 层的每个槽覆盖 wheelSize^L 个 tick，层数足够覆盖 long 的范围；
+// 2、到期时间距离当前 tick 为 delta 时，任务放在满足 delta < wheelSize^(L+1) 的最低一层 L 上；
+//    当前 tick 的低 L * bits 位全为 0 时，第 L 层对应的槽整体下放到更低的层（ cascade ），每个任务最多下放 「 层数 」 次；
+// 3、任务是槽中双向链表的节点，新任务和被取消的任务各自通过一个无锁的侵入式栈交给时间轮线程，调用者不分配额外的节点，也不需要加锁；
+// 4、时间轮线程只负责移动指针，到期的任务按 batchSize 一批交给工作线程池执行，不会被慢任务阻塞。
+// 任务的实际执行时间会比指定的时间晚不到一个 tick，tick 越小越精确，时间轮线程也越频繁地醒来。
+// 语义和 ScheduledThreadPoolExecutor 的默认配置相同：
+// scheduleAtFixedRate() 按上一次的计划时间加上 period 计算下一次的时间，scheduleWithFixedDelay() 按上一次结束的时间加上 delay 计算；
+// 同一个周期任务不会并发执行，抛出异常后不再执行；shutdown() 之后已经安排的一次性任务照常执行，周期任务被取消。
+class TimingWheelScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final int RUNNING = 0;
+
+    private static final int SHUTDOWN = 1;
+
+    private static final int STOP = 2;
+
+    private final long tickNanos;
+
+    private final int bits;
+
+    private final int mask;
+
+    private final int batchSize;
+
+    // wheels[level][slot] 是槽中链表的头节点
+    private final WheelTask<?>[][] wheels;
+
+    private final ExecutorService workers;
+
+    // workers 是否由时间轮创建，是的话关闭时间轮时一起关闭
+    private final boolean ownsWorkers;
+
+    private final Thread timer;
+
+    private final long startNanos;
+
+    // 新安排的任务和被取消的任务，两个侵入式的 Treiber 栈，只有时间轮线程出栈
+    private final AtomicReference<WheelTask<?>> scheduled = new AtomicReference<>();
+
+    private final AtomicReference<WheelTask<?>> cancelled = new AtomicReference<>();
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    // shutdownNow() 等待时间轮线程把所有还没执行的任务交出来
+    private final CompletableFuture<List<Runnable>> drained = new CompletableFuture<>();
+
+    private final CountDownLatch timerTerminated = new CountDownLatch(1);
+
+    // 以下字段只由时间轮线程读写
+
+    // 已经处理过的 tick
+    private long tick;
+
+    // 时间轮上的任务数
+    private int pending;
+
+    public TimingWheelScheduler() {
+        this(DEFAULT_TICK_NANOS, TimeUnit.NANOSECONDS, DEFAULT_WHEEL_SIZE, DEFAULT_BATCH_SIZE,
+             Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), workerThreadFactory()), true);
+    }
+
+    // 使用调用者的工作线程池，关闭时间轮时不会关闭它
+    public TimingWheelScheduler(long tickDuration, TimeUnit unit, int wheelSize, int batchSize, ExecutorService workers) {
+        this(tickDuration, unit, wheelSize, batchSize, workers, false);
+    }
+
+    private TimingWheelScheduler(long tickDuration, TimeUnit unit, int wheelSize, int batchSize,
+                                 ExecutorService workers, boolean ownsWorkers) {
+        Objects.requireNonNull(unit, "unit");
+        Objects.requireNonNull(workers, "workers");
+        long tickNanos = unit.toNanos(tickDuration);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration + " " + unit);
+        }
+        if (wheelSize < 2 || wheelSize > (1 << 16) || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two in [2, 65536]: " + wheelSize);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.tickNanos = tickNanos;
+        this.bits = Integer.numberOfTrailingZeros(wheelSize);
+        this.mask = wheelSize - 1;
+        this.batchSize = batchSize;
+        this.wheels = new WheelTask<?>[(63 + bits - 1) / bits][wheelSize];
+        this.workers = workers;
+        this.ownsWorkers = ownsWorkers;
+        this.startNanos = System.nanoTime();
+        this.timer = new Thread(this::runTimer, "timing-wheel-timer");
+        this.timer.setDaemon(true);
+        this.timer.start();
+    }
+
+    private static ThreadFactory workerThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, "timing-wheel-worker-" + count.incrementAndGet());
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Objects.requireNonNull(command, "command");
+        return schedule(new WheelTask<Void>(command, null, triggerTime(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        Objects.requireNonNull(callable, "callable");
+        return schedule(new WheelTask<>(callable, triggerTime(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        Objects.requireNonNull(command, "command");
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        return schedule(new WheelTask<Void>(command, null, triggerTime(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        Objects.requireNonNull(command, "command");
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive: " + delay);
+        }
+        return schedule(new WheelTask<Void>(command, null, triggerTime(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    // 没有延迟的任务直接交给工作线程，不经过时间轮
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return schedule(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        Objects.requireNonNull(task, "task");
+        return schedule(new WheelTask<>(task, result, System.nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return schedule(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    private <V> WheelTask<V> schedule(WheelTask<V> task) {
+        if (state.get() != RUNNING) {
+            throw new RejectedExecutionException("scheduler has been shut down");
+        }
+        if (task.deadlineNanos - System.nanoTime() <= 0) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.cancel(false);
+                throw e;
+            }
+        } else {
+            push(scheduled, task, true);
+            // 入栈之后才被关闭的话时间轮线程可能已经退出，和 ScheduledThreadPoolExecutor 一样取消这个任务，避免调用者永远等待
+            if (state.get() != RUNNING) {
+                task.cancel(false);
+            }
+        }
+        return task;
+    }
+
+    // 和 ScheduledThreadPoolExecutor 一样限制最大延迟，避免计算到期时间时溢出
+    private static long triggerTime(long delay, TimeUnit unit) {
+        return System.nanoTime() + Math.min(Math.max(unit.toNanos(delay), 0), Long.MAX_VALUE >> 1);
+    }
+
+    private static void push(AtomicReference<WheelTask<?>> stack, WheelTask<?> task, boolean scheduledStack) {
+        WheelTask<?> head;
+        do {
+            head = stack.get();
+            if (scheduledStack) {
+                task.nextScheduled = head;
+            } else {
+                task.nextCancelled = head;
+            }
+        } while (!stack.compareAndSet(head, task));
+    }
+
+    private void runTimer() {
+        boolean periodicCancelled = false;
+        try {
+            while (true) {
+                long deadline = startNanos + (tick + 1) * tickNanos;
+                long now = System.nanoTime();
+                if (now - deadline < 0) {
+                    LockSupport.parkNanos(this, deadline - now);
+                }
+                int s = state.get();
+                if (s == STOP) {
+                    drained.complete(drainAll());
+                    return;
+                }
+                // 醒来晚了的话一次处理完所有落下的 tick
+                long target = (System.nanoTime() - startNanos) / tickNanos;
+                while (tick < target) {
+                    tick++;
+                    advance();
+                }
+                if (s == SHUTDOWN) {
+                    if (!periodicCancelled) {
+                        cancelPeriodic();
+                        periodicCancelled = true;
+                    }
+                    if (pending == 0 && scheduled.get() == null) {
+                        return;
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            drained.complete(new ArrayList<>());
+            throw e;
+        } finally {
+            timerTerminated.countDown();
+            if (ownsWorkers) {
+                if (state.get() == STOP) {
+                    workers.shutdownNow();
+                } else {
+                    workers.shutdown();
+                }
+            }
+        }
+    }
+
+    // 处理一个 tick：先收新任务和被取消的任务，再从高到低下放到期的槽，最后把第 0 层当前槽中到期的任务交给工作线程
+    private void advance() {
+        for (WheelTask<?> task = scheduled.getAndSet(null), next; task != null; task = next) {
+            next = task.nextScheduled;
+            task.nextScheduled = null;
+            if (task.isPeriodic() && state.get() != RUNNING) {
+                task.cancel(false);
+            } else if (!task.isCancelled()) {
+                insert(task);
+            }
+        }
+        for (WheelTask<?> task = cancelled.getAndSet(null), next; task != null; task = next) {
+            next = task.nextCancelled;
+            task.nextCancelled = null;
+            unlink(task);
+        }
+        for (int level = wheels.length - 1; level > 0; level--) {
+            if ((tick & ((1L << (level * bits)) - 1)) == 0) {
+                int slot = (int) (tick >>> (level * bits)) & mask;
+                WheelTask<?> task = wheels[level][slot];
+                wheels[level][slot] = null;
+                while (task != null) {
+                    WheelTask<?> next = task.next;
+                    task.prev = task.next = null;
+                    task.level = -1;
+                    pending--;
+                    insert(task);
+                    task = next;
+                }
+            }
+        }
+
+        int slot = (int) tick & mask;
+        WheelTask<?> task = wheels[0][slot];
+        wheels[0][slot] = null;
+        WheelTask<?> batch = null;
+        int batchCount = 0;
+        while (task != null) {
+            WheelTask<?> next = task.next;
+            task.prev = task.next = null;
+            task.level = -1;
+            pending--;
+            // 第 0 层的槽里只有本轮到期的任务，下一轮的任务在更高的层
+            task.next = batch;
+            batch = task;
+            if (++batchCount == batchSize) {
+                dispatch(batch);
+                batch = null;
+                batchCount = 0;
+            }
+            task = next;
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+    }
+
+    private void insert(WheelTask<?> task) {
+        long deadlineTick = Math.max(tick, ticksUntil(task.deadlineNanos));
+        long delta = deadlineTick - tick;
+        int level = 0;
+        while (level < wheels.length - 1 && (delta >>> ((level + 1) * bits)) != 0) {
+            level++;
+        }
+        int slot = (int) (deadlineTick >>> (level * bits)) & mask;
+        WheelTask<?> head = wheels[level][slot];
+        task.next = head;
+        task.prev = null;
+        if (head != null) {
+            head.prev = task;
+        }
+        wheels[level][slot] = task;
+        task.level = level;
+        task.slot = slot;
+        pending++;
+    }
+
+    // 到期时间对应的 tick，向上取整，保证任务不会提前执行
+    private long ticksUntil(long deadlineNanos) {
+        long elapsed = deadlineNanos - startNanos;
+        return elapsed <= 0 ? 0 : (elapsed + tickNanos - 1) / tickNanos;
+    }
+
+    private void unlink(WheelTask<?> task) {
+        if (task.level < 0) {
+            return;
+        }
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            wheels[task.level][task.slot] = task.next;
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = task.next = null;
+        task.level = -1;
+        pending--;
+    }
+
+    // batch 是通过 next 串起来的一批到期任务，交给工作线程之后 next 就不再使用
+    private void dispatch(WheelTask<?> batch) {
+        try {
+            workers.execute(() -> {
+                for (WheelTask<?> task = batch, next; task != null; task = next) {
+                    next = task.next;
+                    task.next = null;
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (WheelTask<?> task = batch; task != null; task = task.next) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    private void cancelPeriodic() {
+        for (WheelTask<?>[] wheel : wheels) {
+            for (WheelTask<?> task : wheel) {
+                for (; task != null; task = task.next) {
+                    if (task.isPeriodic()) {
+                        // 入栈的任务在下一个 tick 被摘掉
+                        task.cancel(false);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Runnable> drainAll() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (WheelTask<?> task = scheduled.getAndSet(null); task != null; task = task.nextScheduled) {
+            if (!task.isCancelled()) {
+                tasks.add(task);
+            }
+        }
+        for (WheelTask<?>[] wheel : wheels) {
+            for (int slot = 0; slot < wheel.length; slot++) {
+                for (WheelTask<?> task = wheel[slot]; task != null; task = task.next) {
+                    if (!task.isCancelled()) {
+                        tasks.add(task);
+                    }
+                }
+                wheel[slot] = null;
+            }
+        }
+        pending = 0;
+        return tasks;
+    }
+
+    @Override
+    public void shutdown() {
+        state.compareAndSet(RUNNING, SHUTDOWN);
+        LockSupport.unpark(timer);
+    }
+
+    // 返回还在时间轮上、没有执行过的任务
+    @Override
+    public List<Runnable> shutdownNow() {
+        state.set(STOP);
+        LockSupport.unpark(timer);
+        try {
+            timerTerminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ownsWorkers) {
+            workers.shutdownNow();
+        }
+        return drained.getNow(new ArrayList<>());
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return state.get() != RUNNING;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return timerTerminated.getCount() == 0 && (!ownsWorkers || workers.isTerminated());
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!timerTerminated.await(timeout, unit)) {
+            return false;
+        }
+        return !ownsWorkers || workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    // 时间轮上的任务，同时也是槽中双向链表的节点
+    private final class WheelTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        // 0 表示一次性任务，大于 0 表示 fixed rate，小于 0 表示 fixed delay
+        private final long period;
+
+        private volatile long deadlineNanos;
+
+        // 以下字段只由时间轮线程读写；任务被交给工作线程时 next 用来把一批任务串起来
+
+        private WheelTask<?> prev;
+
+        private WheelTask<?> next;
+
+        // 所在的层，-1 表示不在时间轮上
+        private int level = -1;
+
+        private int slot;
+
+        // 入栈时的下一个节点，由 Treiber 栈的 CAS 发布
+        private WheelTask<?> nextScheduled;
+
+        private WheelTask<?> nextCancelled;
+
+        WheelTask(Runnable runnable, V result, long deadlineNanos, long period) {
+            super(runnable, result);
+            this.deadlineNanos = deadlineNanos;
+            this.period = period;
+        }
+
+        WheelTask(Callable<V> callable, long deadlineNanos) {
+            super(callable);
+            this.deadlineNanos = deadlineNanos;
+            this.period = 0;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            long diff = other instanceof WheelTask
+                    ? deadlineNanos - ((WheelTask<?>) other).deadlineNanos
+                    : getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+                return;
+            }
+            if (runAndReset()) {
+                deadlineNanos = period > 0 ? deadlineNanos + period : triggerTime(-period, TimeUnit.NANOSECONDS);
+                if (state.get() == RUNNING) {
+                    push(scheduled, this, true);
+                    // 入栈之后才被关闭的话周期任务本来就要被取消
+                    if (state.get() != RUNNING) {
+                        cancel(false);
+                    }
+                } else {
+                    cancel(false);
+                }
+            }
+        }
+
+        // 取消成功时交给时间轮线程把任务从槽中摘掉
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            if (result && state.get() != STOP) {
+                push(cancelled, this, false);
+            }
+            return result;
+        }
+    }
+}
+
+// 按截止时间调度、过载时丢弃任务的执行器，用来替代 FIFO 加无界队列的 ThreadPoolExecutor：
+// 1、提交任务时可以指定超时时间（ 从提交时算起的截止时间 ）和优先级，队列按截止时间最早优先（ EDF ）排序，没有截止时间的任务排在后面，按提交顺序执行；
+// 2、任务出队时如果已经过了截止时间，调用者早就不等了，不再执行，Future 以 TimeoutException 失败；
+// 3、参考 CoDel 的思路按任务的排队时间判断是否过载：排队时间连续 interval 都高于 targetQueueWait 就进入丢弃状态，
+//    排队时间取还在队列中的最早提交的任务已经等待的时间，而不是 EDF 队头的任务，否则截止时间很近的新任务一来就会让过载检测重新开始，
+//    按 interval / sqrt(丢弃次数) 的间隔丢弃优先级不高于 sheddablePriority 的任务，Future 以 RejectedExecutionException 失败，
+//    排队时间回落到目标以下就退出丢弃状态；
+// 4、队列有容量上限，满了之后直接拒绝新任务。
+// 过期、丢弃和拒绝的任务都会计数，并通知构造时传入的 listener。
+class DeadlineExecutor extends AbstractExecutorService {
+
+    enum DropReason {
+        // 出队时已经过了截止时间
+        EXPIRED,
+        // 过载时被丢弃
+        SHED,
+        // 队列已满或执行器已关闭，提交时被拒绝
+        REJECTED
+    }
+
+    static final int DEFAULT_PRIORITY = 0;
+
+    private static final Logger logger = Logger.getLogger(DeadlineExecutor.class.getName());
+
+    static final long DEFAULT_TARGET_QUEUE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int RUNNING = 0;
+
+    private static final int SHUTDOWN = 1;
+
+    private static final int STOP = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    // 以下字段由 lock 保护
+    private final PriorityQueue<DeadlineTask<?>> queue = new PriorityQueue<>();
+
+    // 按提交顺序排列的任务，用来找到还在队列中的最早提交的任务；已经出队的任务在到达队头时移除
+    private final ArrayDeque<DeadlineTask<?>> arrivals = new ArrayDeque<>();
+
+    private long sequence;
+
+    private int state = RUNNING;
+
+    // 排队时间从什么时候开始高于目标，aboveTarget 为 false 时没有意义
+    private boolean aboveTarget;
+
+    private long firstAboveNanos;
+
+    private boolean dropping;
+
+    private long dropNextNanos;
+
+    private int dropCount;
+
+    private final int capacity;
+
+    private final long targetQueueWaitNanos;
+
+    private final long intervalNanos;
+
+    private final int sheddablePriority;
+
+    private final BiConsumer<Future<?>, DropReason> listener;
+
+    private final Thread[] workers;
+
+    private final CountDownLatch terminated;
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder shed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    public DeadlineExecutor(int threads, int capacity) {
+        this(threads, capacity, DEFAULT_TARGET_QUEUE_WAIT_NANOS, DEFAULT_INTERVAL_NANOS, TimeUnit.NANOSECONDS,
+             DEFAULT_PRIORITY, (future, reason) -> {
+             });
+    }
+
+    public DeadlineExecutor(int threads, int capacity, long targetQueueWait, long interval, TimeUnit unit,
+                            int sheddablePriority, BiConsumer<Future<?>, DropReason> listener) {
+        Objects.requireNonNull(unit, "unit");
+        Objects.requireNonNull(listener, "listener");
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (targetQueueWait < 0 || interval <= 0) {
+            throw new IllegalArgumentException("require targetQueueWait >= 0 and interval > 0: " + targetQueueWait + ", " + interval);
+        }
+        this.capacity = capacity;
+        this.targetQueueWaitNanos = unit.toNanos(targetQueueWait);
+        this.intervalNanos = unit.toNanos(interval);
+        this.sheddablePriority = sheddablePriority;
+        this.listener = listener;
+        this.terminated = new CountDownLatch(threads);
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::runWorker, "deadline-executor-" + (i + 1));
+            workers[i].start();
+        }
+    }
+
+    // timeout 是从现在起的截止时间，priority 越大越重要，不大于 sheddablePriority 的任务在过载时可以被丢弃
+    public <T> Future<T> submit(Callable<T> task, long timeout, TimeUnit unit, int priority) {
+        Objects.requireNonNull(task, "task");
+        DeadlineTask<T> future = new DeadlineTask<>(task, System.nanoTime() + unit.toNanos(timeout), true, priority);
+        execute(future);
+        return future;
+    }
+
+    public Future<?> submit(Runnable task, long timeout, TimeUnit unit, int priority) {
+        Objects.requireNonNull(task, "task");
+        DeadlineTask<Void> future = new DeadlineTask<>(Executors.callable(task, null),
+                                                       System.nanoTime() + unit.toNanos(timeout), true, priority);
+        execute(future);
+        return future;
+    }
+
+    // 普通的 submit() 没有截止时间，使用默认优先级
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new DeadlineTask<>(callable, 0, false, DEFAULT_PRIORITY);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new DeadlineTask<>(Executors.callable(runnable, value), 0, false, DEFAULT_PRIORITY);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Objects.requireNonNull(command, "command");
+        DeadlineTask<?> task = command instanceof DeadlineTask
+                ? (DeadlineTask<?>) command : (DeadlineTask<?>) newTaskFor(command, null);
+        String reason = null;
+        lock.lock();
+        try {
+            if (state != RUNNING) {
+                reason = "executor has been shut down";
+            } else if (queue.size() >= capacity) {
+                reason = "queue is full: " + capacity;
+            } else {
+                task.sequence = sequence++;
+                task.enqueueNanos = System.nanoTime();
+                task.queued = true;
+                queue.add(task);
+                arrivals.add(task);
+                // 最早提交的任务一直不出队时，已经出队的任务会在 arrivals 里越积越多，超过队列长度的两倍就整体清理一次
+                if (arrivals.size() > 2 * queue.size() + 16) {
+                    arrivals.removeIf(t -> !t.queued);
+                }
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (reason != null) {
+            RejectedExecutionException e = new RejectedExecutionException(reason);
+            task.fail(e);
+            drop(task, DropReason.REJECTED);
+            throw e;
+        }
+    }
+
+    private void runWorker() {
+        try {
+            DeadlineTask<?> task;
+            while ((task = take()) != null) {
+                task.run();
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    // 取出下一个要执行的任务，顺便处理排在它前面的过期任务和要丢弃的任务；关闭之后队列为空时返回 null
+    private DeadlineTask<?> take() {
+        while (true) {
+            List<DeadlineTask<?>> droppedTasks = null;
+            DeadlineTask<?> shedTask = null;
+            DeadlineTask<?> next = null;
+            boolean exit = false;
+            lock.lock();
+            try {
+                while (next == null && shedTask == null) {
+                    if (state == STOP) {
+                        exit = true;
+                        break;
+                    }
+                    DeadlineTask<?> task = queue.poll();
+                    if (task == null) {
+                        // 先在锁外面处理掉已经取出的过期任务，再回来等待
+                        if (droppedTasks != null) {
+                            break;
+                        }
+                        if (state != RUNNING) {
+                            exit = true;
+                            break;
+                        }
+                        notEmpty.awaitUninterruptibly();
+                        continue;
+                    }
+                    task.queued = false;
+                    if (task.isDone()) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if (task.hasDeadline && now - task.deadlineNanos > 0) {
+                        if (droppedTasks == null) {
+                            droppedTasks = new ArrayList<>();
+                        }
+                        droppedTasks.add(task);
+                        continue;
+                    }
+                    long sojournNanos = Math.max(now - task.enqueueNanos, oldestQueueWait(now));
+                    if (shouldShed(sojournNanos, now, task.priority <= sheddablePriority)) {
+                        shedTask = task;
+                    } else {
+                        next = task;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            // 在锁外面完成 Future 和通知 listener
+            if (droppedTasks != null) {
+                for (DeadlineTask<?> task : droppedTasks) {
+                    task.fail(new TimeoutException("deadline exceeded before the task started"));
+                    drop(task, DropReason.EXPIRED);
+                }
+            }
+            if (shedTask != null) {
+                shedTask.fail(new RejectedExecutionException("shed under overload"));
+                drop(shedTask, DropReason.SHED);
+            }
+            if (next != null) {
+                return next;
+            }
+            if (exit) {
+                return null;
+            }
+        }
+    }
+
+    // 还在队列中的最早提交的任务已经等待的时间，队列为空时为 0，持有 lock 时调用
+    private long oldestQueueWait(long now) {
+        DeadlineTask<?> oldest;
+        while ((oldest = arrivals.peek()) != null && !oldest.queued) {
+            arrivals.poll();
+        }
+        return oldest == null ? 0 : now - oldest.enqueueNanos;
+    }
+
+    // CoDel 的控制律，持有 lock 时调用
+    private boolean shouldShed(long sojournNanos, long now, boolean sheddable) {
+        if (sojournNanos < targetQueueWaitNanos) {
+            aboveTarget = false;
+            dropping = false;
+            return false;
+        }
+        if (!aboveTarget) {
+            aboveTarget = true;
+            firstAboveNanos = now + intervalNanos;
+            return false;
+        }
+        if (!dropping) {
+            if (now - firstAboveNanos < 0) {
+                return false;
+            }
+            dropping = true;
+            dropCount = 0;
+            dropNextNanos = now;
+        }
+        // 不可丢弃的任务不消耗丢弃的机会，下一个可丢弃的任务会被丢弃
+        if (!sheddable || now - dropNextNanos < 0) {
+            return false;
+        }
+        dropCount++;
+        dropNextNanos = now + (long) (intervalNanos / Math.sqrt(dropCount));
+        return true;
+    }
+
+    private void drop(DeadlineTask<?> task, DropReason reason) {
+        switch (reason) {
+            case EXPIRED:
+                expired.increment();
+                break;
+            case SHED:
+                shed.increment();
+                break;
+            default:
+                rejected.increment();
+                break;
+        }
+        // listener 抛出的异常不能让工作线程退出，也不能替换掉 execute() 要抛出的 RejectedExecutionException
+        try {
+            listener.accept(task, reason);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "drop listener failed for " + reason + " task", e);
+        }
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 是否处于丢弃状态
+    public boolean isShedding() {
+        lock.lock();
+        try {
+            return dropping;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            if (state == RUNNING) {
+                state = SHUTDOWN;
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 返回还没有开始执行的任务，并中断正在执行任务的线程
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = new ArrayList<>();
+        lock.lock();
+        try {
+            state = STOP;
+            for (DeadlineTask<?> task = queue.poll(); task != null; task = queue.poll()) {
+                task.queued = false;
+                tasks.add(task);
+            }
+            arrivals.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return state != RUNNING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    // 带截止时间和优先级的任务，按截止时间排序，没有截止时间的排在后面，截止时间相同时按提交顺序
+    private static final class DeadlineTask<V> extends FutureTask<V> implements Comparable<DeadlineTask<?>> {
+
+        private final long deadlineNanos;
+
+        private final boolean hasDeadline;
+
+        private final int priority;
+
+        // 以下字段由 lock 保护
+        private long sequence;
+
+        private long enqueueNanos;
+
+        // 还在 queue 中
+        private boolean queued;
+
+        DeadlineTask(Callable<V> callable, long deadlineNanos, boolean hasDeadline, int priority) {
+            super(callable);
+            this.deadlineNanos = deadlineNanos;
+            this.hasDeadline = hasDeadline;
+            this.priority = priority;
+        }
+
+        void fail(Throwable e) {
+            setException(e);
+        }
+
+        @Override
+        public int compareTo(DeadlineTask<?> other) {
+            if (hasDeadline != other.hasDeadline) {
+                return hasDeadline ? -1 : 1;
+            }
+            if (hasDeadline && deadlineNanos != other.deadlineNanos) {
+                return deadlineNanos - other.deadlineNanos < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,11 +1,27 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoublePredicate;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ForkJoinDemo {
@@ -55,6 +71,9 @@ public class ForkJoinDemo {
         // 在这个示例中，我们使用了一个字符串类型 ( String ) 的名为 workload 属性来表示要处理的工作单元。
         // 2、 选择合适的阈值；
         // 同时，为了演示 fork/join 框架的 fork 行为，在该示例中，如果 workload.length() 大于指定的阈值，那么就使用 createSubtask() 方法拆分任务。
+        // 固定的阈值很难选：太小时任务创建的开销超过计算本身，而且合适的值和机器的核数、每个元素的计算开销都有关系。
+        // 所以这里的示例不再使用固定的阈值，而是根据 getSurplusQueuedTaskCount()、线程池的并行度和采样得到的每个元素的开销自适应地决定是否拆分（ Lazy Binary Splitting ），
+        // 见 class AdaptiveSplitPolicy；拆分的骨架放在基类里，见 class AdaptiveRecursiveAction 和 class AdaptiveRecursiveTask
         // 3、 定义分割工作的方法；
         // 在createSubtasks() 方法中，输入的字符串被递归地划分为子串，然后创建基于这些子串的 CustomRecursiveTask 实例。
         // 4、 定义执行工作的方法；
@@ -68,6 +87,29 @@ public class ForkJoinDemo {
         // 然后，invokeAll()方法将子任务提交给公共拉取并返回 Future 列表。
         // 要触发执行，需要为每个子任务调用 join() 方法。
         // 使用了 Java 8 的流 ( Stream ) API ， sum() 方法用于将子结果组合到最终结果中。
+        // 不过 CustomRecursiveTask 每次拆分都要 Arrays.copyOfRange() 复制一半数组，对 N 个元素求和总共要复制 O(N log N) 个 int，每个节点还要分配一个新数组，结果也都是装箱的 Integer。
+        // 更好的做法是所有任务共享同一个 int[]，只按 (from, to) 下标拆分范围，结果保存在 long 字段里；
+        // 拆分时只 fork() 左半部分，右半部分在当前线程里直接 compute()，最后再 join() 左半部分，少提交一半的任务。
+        // 见 class RangeSumTask
+        int[] numbers = new int[1_000_000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i % 30;
+        }
+        long rangeSum = RangeSumTask.sum(forkJoinPool, numbers);
+        System.out.println("RangeSumTask: " + rangeSum + ", CustomRecursiveTask: " + forkJoinPool.invoke(new CustomRecursiveTask(numbers)));
+
+        // 求和只是最简单的归约。前缀和（ 扫描 ）、分段归约、过滤（ 压缩 ）和直方图也都可以用同样的 「 分块 + 两遍扫描 」 的方式并行化，
+        // 它们是列式分析中最常用的构建块。
+        // 见 class ParallelPrimitives
+        long[] prefix = new long[numbers.length];
+        for (int i = 0; i < prefix.length; i++) {
+            prefix[i] = numbers[i];
+        }
+        ParallelPrimitives.inclusiveScan(forkJoinPool, prefix);
+        int[] filtered = ParallelPrimitives.filter(forkJoinPool, numbers, a -> a > 10 && a < 27);
+        long[] histogram = ParallelPrimitives.histogram(forkJoinPool, numbers, 30);
+        long[] segmentSums = ParallelPrimitives.segmentedSum(forkJoinPool, numbers, new int[]{0, 10, 500_000, numbers.length});
+        System.out.println(prefix[prefix.length - 1] + " " + filtered.length + " " + histogram[0] + " " + segmentSums[1]);
 
 
         // 三、将任务提交到 ForkJoinPool 线程池中
@@ -105,38 +147,228 @@ public class ForkJoinDemo {
         // 2、当不需要任何调整时，使用默认的公共线程池。
         // 3、使用合理的阈值。将 ForkJoingTask 任务拆分为子任务。
         // 4、避免在 ForkJoinTasks 中出现任何阻塞
+
+        // 关于第 1、2 条：公共池被整个 JVM 共享，CPU 密集的批处理任务会把请求路径上的短任务饿死。
+        // 需要隔离的负载应该各自使用一个按名字注册的线程池，由注册表统一配置并行度、线程工厂、未捕获异常处理器，并定期采样运行状态。
+        // 见 class ForkJoinPoolRegistry
+        ForkJoinPool batchPool = REGISTRY.create("batch", 2);
+        ForkJoinPool requestPool = REGISTRY.create("request", 1);
+        batchPool.invoke(new CustomRecursiveTask(numbers));
+        requestPool.invoke(new CustomRecursiveTask(new int[]{11, 12, 13}));
+        REGISTRY.sampleAll();
+        REGISTRY.getAllMetrics().values().forEach(System.out::println);
+    }
+
+    // 示例中用到的线程池都在这个注册表里，每秒采样一次
+    static final ForkJoinPoolRegistry REGISTRY = new ForkJoinPoolRegistry(1, TimeUnit.SECONDS);
+
+    public static ForkJoinPool forkJoinPool = REGISTRY.create("fork-join-demo", 2);
+
+}
+
+// 自适应拆分策略，SplitPolicy 决定一个规模为 size 的任务是继续拆分还是直接顺序计算
+interface SplitPolicy {
+
+    boolean shouldSplit(int size);
+
+    // 叶子任务顺序计算完 size 个元素用了 nanos 纳秒，固定阈值的策略不需要这个信息
+    default void record(int size, long nanos) {
+    }
+
+    // 固定阈值：size 大于 threshold 就拆分，和原来的 THRESHOLD 常量行为相同，benchmark 里用来做对比
+    static SplitPolicy threshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+        return size -> size > threshold;
+    }
+}
+
+// 参考 Lazy Binary Splitting 的自适应拆分策略，不需要按机器的核数手动调阈值：
+// 1、线程池的并行度为 1 时拆分没有意义，直接顺序计算；
+// 2、getSurplusQueuedTaskCount() 是当前线程的双端队列里还没被其它线程窃取的任务数的估计值，
+//    超过 surplusThreshold 说明其它线程并不缺活干，再拆分只会增加任务创建的开销，直接顺序计算；
+//    反之说明有空闲线程在等待窃取，继续拆分；队列为空的线程会一直拆分，所以核数越多拆得越细，4 核和 96 核用同一份代码即可；
+// 3、叶子任务把顺序计算的耗时回报给策略，按指数加权平均估计每个元素的开销，
+//    保证每个叶子任务至少运行 targetLeafNanos 纳秒，拆得再小，任务创建和窃取的开销就超过计算本身了。
+// 每个元素的开销和任务的类型有关，一般每种任务共享一个策略实例
+class AdaptiveSplitPolicy implements SplitPolicy {
+
+    static final int DEFAULT_SURPLUS_THRESHOLD = 3;
+
+    static final long DEFAULT_TARGET_LEAF_NANOS = 50_000L;
+
+    // 新样本的权重
+    private static final double ALPHA = 0.25;
+
+    private final int minGranularity;
+
+    private final int surplusThreshold;
+
+    private final long targetLeafNanos;
+
+    // 每个元素的耗时（ 纳秒 ），0 表示还没有采样；
+    // 多个叶子任务并发更新时可能丢掉个别样本，对启发式的估计来说无所谓，所以只用 volatile 不加锁
+    private volatile double nanosPerElement;
+
+    // 由 nanosPerElement 换算出来的叶子任务的最小规模，不大于它就不再拆分
+    private volatile int minLeafSize;
+
+    public AdaptiveSplitPolicy() {
+        this(1, DEFAULT_SURPLUS_THRESHOLD, DEFAULT_TARGET_LEAF_NANOS);
+    }
+
+    public AdaptiveSplitPolicy(int minGranularity, int surplusThreshold, long targetLeafNanos) {
+        if (minGranularity <= 0) {
+            throw new IllegalArgumentException("minGranularity must be positive: " + minGranularity);
+        }
+        if (surplusThreshold < 0) {
+            throw new IllegalArgumentException("surplusThreshold must not be negative: " + surplusThreshold);
+        }
+        if (targetLeafNanos < 0) {
+            throw new IllegalArgumentException("targetLeafNanos must not be negative: " + targetLeafNanos);
+        }
+        this.minGranularity = minGranularity;
+        this.surplusThreshold = surplusThreshold;
+        this.targetLeafNanos = targetLeafNanos;
+        this.minLeafSize = minGranularity;
+    }
+
+    @Override
+    public boolean shouldSplit(int size) {
+        if (size < 2 || size <= minLeafSize) {
+            return false;
+        }
+        // 不在 ForkJoinPool 的工作线程里时 fork() 的任务会提交到公共池
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        int parallelism = pool == null ? ForkJoinPool.getCommonPoolParallelism() : pool.getParallelism();
+        if (parallelism <= 1) {
+            return false;
+        }
+        return ForkJoinTask.getSurplusQueuedTaskCount() <= surplusThreshold;
+    }
+
+    @Override
+    public void record(int size, long nanos) {
+        if (size <= 0 || nanos <= 0) {
+            return;
+        }
+        double sample = (double) nanos / size;
+        double old = nanosPerElement;
+        double estimate = old == 0 ? sample : old + (sample - old) * ALPHA;
+        nanosPerElement = estimate;
+        minLeafSize = (int) Math.max(minGranularity, Math.min(Integer.MAX_VALUE, targetLeafNanos / estimate));
+    }
+
+    public double getNanosPerElement() {
+        return nanosPerElement;
+    }
+
+    public int getMinLeafSize() {
+        return minLeafSize;
+    }
+}
+
+// 按 SplitPolicy 拆分的 RecursiveTask 基类，子类只需要给出任务规模 size()、拆分方式 split() 和顺序计算 computeDirectly()，
+// 是否拆分由策略决定，顺序计算的耗时由基类统计后回报给策略
+abstract class AdaptiveRecursiveTask<V> extends RecursiveTask<V> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final SplitPolicy policy;
+
+    protected AdaptiveRecursiveTask(SplitPolicy policy) {
+        this.policy = Objects.requireNonNull(policy, "policy");
+    }
+
+    protected abstract int size();
+
+    // 拆分出子任务（ 子任务一般沿用同一个 policy ），执行并合并结果
+    protected abstract V split();
+
+    protected abstract V computeDirectly();
+
+    @Override
+    protected final V compute() {
+        int size = size();
+        if (policy.shouldSplit(size)) {
+            return split();
+        }
+        long start = System.nanoTime();
+        V result = computeDirectly();
+        policy.record(size, System.nanoTime() - start);
+        return result;
+    }
+}
+
+// 和 AdaptiveRecursiveTask 相同，用于不返回结果的 RecursiveAction
+abstract class AdaptiveRecursiveAction extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final SplitPolicy policy;
+
+    protected AdaptiveRecursiveAction(SplitPolicy policy) {
+        this.policy = Objects.requireNonNull(policy, "policy");
     }
 
-    public static ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+    protected abstract int size();
+
+    protected abstract void split();
 
+    protected abstract void computeDirectly();
+
+    @Override
+    protected final void compute() {
+        int size = size();
+        if (policy.shouldSplit(size)) {
+            split();
+            return;
+        }
+        long start = System.nanoTime();
+        computeDirectly();
+        policy.record(size, System.nanoTime() - start);
+    }
 }
 
-class CustomRecursiveAction extends RecursiveAction {
+class CustomRecursiveAction extends AdaptiveRecursiveAction {
 
     // 在这个示例中，我们使用了一个字符串类型 ( String ) 的名为 workload 属性来表示要处理的工作单元。
     private String workload = "";
 
-    private static final int THRESHOLD = 4;
+    // 不再使用固定的 THRESHOLD = 4，是否拆分由自适应策略决定，见 class AdaptiveSplitPolicy
+    private static final SplitPolicy POLICY = new AdaptiveSplitPolicy();
 
     private static Logger logger = Logger.getAnonymousLogger();
 
     public CustomRecursiveAction(String workload) {
+        this(workload, POLICY);
+    }
+
+    private CustomRecursiveAction(String workload, SplitPolicy policy) {
+        super(policy);
         this.workload = workload;
     }
 
     @Override
-    protected void compute() {
-        // 同时，为了演示 fork/join 框架的 fork 行为，在该示例中，如果 workload.length() 大于指定的阈值，
-        if (workload.length() > THRESHOLD) {
-            // 那么就使用 createSubtask() 方法拆分任务。
-            // 在createSubtasks() 方法中，输入的字符串被递归地划分为子串，然后创建基于这些子串的 CustomRecursiveTask 实例。
-            // 当递归分割字符串完毕时，createSubtasks() 方法返回 List<CustomRecursiveAction> 作为结果。
-            List<CustomRecursiveAction> subTasks = createSubTasks();
-            // 然后在compute() 方法中使用 invokeAll() 方法将任务列表提交给 ForkJoinPool 线程池。
-            ForkJoinTask.invokeAll(subTasks);
-        } else {
-            processing(workload);
-        }
+    protected int size() {
+        return workload.length();
+    }
+
+    // 同时，为了演示 fork/join 框架的 fork 行为，在该示例中，如果策略认为 workload 需要拆分，
+    @Override
+    protected void split() {
+        // 那么就使用 createSubtask() 方法拆分任务。
+        // 在createSubtasks() 方法中，输入的字符串被递归地划分为子串，然后创建基于这些子串的 CustomRecursiveTask 实例。
+        // 当递归分割字符串完毕时，createSubtasks() 方法返回 List<CustomRecursiveAction> 作为结果。
+        List<CustomRecursiveAction> subTasks = createSubTasks();
+        // 然后在compute() 方法中使用 invokeAll() 方法将任务列表提交给 ForkJoinPool 线程池。
+        ForkJoinTask.invokeAll(subTasks);
+    }
+
+    @Override
+    protected void computeDirectly() {
+        processing(workload);
     }
 
     private List<CustomRecursiveAction> createSubTasks() {
@@ -144,8 +376,8 @@ class CustomRecursiveAction extends RecursiveAction {
         // 在createSubtasks() 方法中，输入的字符串被递归地划分为子串，然后创建基于这些子串的 CustomRecursiveTask 实例。
         String partOne = workload.substring(0, workload.length() / 2);
         String partTwo = workload.substring(workload.length() / 2, workload.length());
-        subTasks.add(new CustomRecursiveAction(partOne));
-        subTasks.add(new CustomRecursiveAction(partTwo));
+        subTasks.add(new CustomRecursiveAction(partOne, policy));
+        subTasks.add(new CustomRecursiveAction(partTwo, policy));
         // 当递归分割字符串完毕时，createSubtasks() 方法返回 List<CustomRecursiveAction> 作为结果。
         return subTasks;
     }
@@ -158,38 +390,56 @@ class CustomRecursiveAction extends RecursiveAction {
 
 }
 
-class CustomRecursiveTask extends RecursiveTask<Integer> {
+class CustomRecursiveTask extends AdaptiveRecursiveTask<Integer> {
 
     // 在上面这个示例中，任务由存储在 CustomRecursiveTask 类的 arr 字段中的数组表示。
     private int[] arr;
 
-    private static final int THRESHOLD = 20;
+    // 默认按自适应策略拆分，不再使用固定的 THRESHOLD = 20
+    private static final SplitPolicy POLICY = new AdaptiveSplitPolicy();
 
     public CustomRecursiveTask(int[] arr) {
+        this(arr, POLICY);
+    }
+
+    // 固定拆分阈值，benchmark 里用不同的阈值和自适应策略做对比
+    public CustomRecursiveTask(int[] arr, int threshold) {
+        this(arr, SplitPolicy.threshold(threshold));
+    }
+
+    private CustomRecursiveTask(int[] arr, SplitPolicy policy) {
+        super(policy);
         this.arr = arr;
     }
 
     @Override
-    protected Integer compute() {
-        if (arr.length > THRESHOLD) {
-            // createSubtask() 方法递归地将任务划分为较小的工作，直到每个部分小于阈值。然后，invokeAll()方法将子任务提交给公共拉取并返回 Future 列表。
-            return ForkJoinTask.invokeAll(createSubTasks())
-                    .stream()
-                    // 要触发执行，需要为每个子任务调用 join() 方法。
-                    .mapToInt(ForkJoinTask::join)
-                    // sum() 方法用于将子结果组合到最终结果中。
-                    .sum();
-        }
+    protected int size() {
+        return arr.length;
+    }
+
+    @Override
+    protected Integer split() {
+        // createSubtask() 方法递归地将任务划分为较小的工作，直到策略认为不需要再拆分。然后，invokeAll()方法将子任务提交给公共拉取并返回 Future 列表。
+        return ForkJoinTask.invokeAll(createSubTasks())
+                .stream()
+                // 要触发执行，需要为每个子任务调用 join() 方法。
+                .mapToInt(ForkJoinTask::join)
+                // sum() 方法用于将子结果组合到最终结果中。
+                .sum();
+    }
+
+    @Override
+    protected Integer computeDirectly() {
         return processing(arr);
     }
 
     private Collection<CustomRecursiveTask> createSubTasks() {
         List<CustomRecursiveTask> dividedTaskList = new ArrayList<>();
         dividedTaskList.add(new CustomRecursiveTask(
-                Arrays.copyOfRange(arr, 0, arr.length / 2)
+                Arrays.copyOfRange(arr, 0, arr.length / 2), policy
         ));
         dividedTaskList.add(new CustomRecursiveTask(
-                Arrays.copyOfRange(arr, arr.length / 2, arr.length)
+                Arrays.copyOfRange(arr, arr.length / 2, arr.length), policy
         ));
         return dividedTaskList;
     }
@@ -200,4 +450,926 @@ class CustomRecursiveTask extends RecursiveTask<Integer> {
                 .map(a -> a * 10)
                 .sum();
     }
-}
\ No newline at end of file
+}
+// 基于下标范围的求和任务，和 CustomRecursiveTask 的 processing() 计算相同的结果（ 过滤 10 < a < 27，乘 10 再求和 ）
+// 所有子任务共享同一个 arr，只记录 [from, to) 范围，拆分时不复制数组；
+// 继承 RecursiveAction 而不是 RecursiveTask<Long>，结果放在 long 字段里，join() 之后直接读，整个计算过程没有装箱
+class RangeSumTask extends AdaptiveRecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final SplitPolicy POLICY = new AdaptiveSplitPolicy();
+
+    private final int[] arr;
+
+    private final int from;
+
+    private final int to;
+
+    private long result;
+
+    public RangeSumTask(int[] arr, int from, int to) {
+        this(arr, from, to, POLICY);
+    }
+
+    public RangeSumTask(int[] arr, int from, int to, int threshold) {
+        this(arr, from, to, SplitPolicy.threshold(threshold));
+    }
+
+    private RangeSumTask(int[] arr, int from, int to, SplitPolicy policy) {
+        super(policy);
+        if (from < 0 || to > arr.length || from > to) {
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + arr.length);
+        }
+        this.arr = arr;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static long sum(ForkJoinPool pool, int[] arr) {
+        RangeSumTask task = new RangeSumTask(arr, 0, arr.length);
+        pool.invoke(task);
+        return task.getResult();
+    }
+
+    // 任务完成之后调用
+    public long getResult() {
+        return result;
+    }
+
+    @Override
+    protected int size() {
+        return to - from;
+    }
+
+    @Override
+    protected void computeDirectly() {
+        result = processing(arr, from, to);
+    }
+
+    @Override
+    protected void split() {
+        int mid = (from + to) >>> 1;
+        RangeSumTask left = new RangeSumTask(arr, from, mid, policy);
+        RangeSumTask right = new RangeSumTask(arr, mid, to, policy);
+        // 只 fork 左半部分，右半部分在当前线程计算
+        left.fork();
+        right.compute();
+        left.join();
+        result = left.result + right.result;
+    }
+
+    static long processing(int[] arr, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            int a = arr[i];
+            if (a > 10 && a < 27) {
+                sum += a * 10;
+            }
+        }
+        return sum;
+    }
+}
+
+// 基于 ForkJoinPool 的并行数组原语：前缀和（ 扫描 ）、分段归约、过滤（ 压缩 ）和直方图
+// 所有操作都使用同一种分块方式：数组被切成 chunks 个连续的块，块数取决于线程池的并行度和 DEFAULT_GRANULARITY，
+// 每一遍扫描中每个块由一个叶子任务顺序处理，块和块之间只在两遍之间用很小的数组（ 每块一个元素 ）交换信息。
+// 比如前缀和分两遍：第一遍并行计算每个块的总和，然后对块的总和做一次顺序的前缀和，得到每个块的起始值，第二遍并行地在每个块内部做前缀和。
+// 数组规模不大于 DEFAULT_GRANULARITY 或者并行度为 1 时，直接在当前线程里顺序计算。
+// int 和 long 的求和溢出时和顺序计算一样按补码回绕；double 的结果和顺序计算可能有舍入误差，因为加法的顺序不同。
+final class ParallelPrimitives {
+
+    // 每个块至少包含的元素个数
+    static final int DEFAULT_GRANULARITY = 1 << 13;
+
+    // 每个线程平均分到的块数，多分几块，工作窃取才有余地平衡负载
+    static final int CHUNKS_PER_THREAD = 4;
+
+    private ParallelPrimitives() {
+    }
+
+    // ---------------- 前缀和 ----------------
+
+    // 原地计算包含当前元素的前缀和：a[i] = a[0] + ... + a[i]，和 Arrays.parallelPrefix(a, Integer::sum) 的结果相同
+    // 第一遍不需要最后一块的总和（ offsets 中对应的位置保持为 0 ），所以只有一块时只剩下第二遍顺序扫描
+    public static void inclusiveScan(ForkJoinPool pool, int[] a) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        int[] offsets = new int[chunks];
+        forEachChunk(pool, chunks - 1, c -> {
+            int sum = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+            }
+            offsets[c] = sum;
+        });
+        int carry = 0;
+        for (int c = 0; c < chunks; c++) {
+            int sum = offsets[c];
+            offsets[c] = carry;
+            carry += sum;
+        }
+        forEachChunk(pool, chunks, c -> {
+            int sum = offsets[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+                a[i] = sum;
+            }
+        });
+    }
+
+    // 原地计算不包含当前元素的前缀和：a[i] = a[0] + ... + a[i - 1]，a[0] = 0，返回所有元素的总和
+    public static int exclusiveScan(ForkJoinPool pool, int[] a) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        int[] offsets = new int[chunks + 1];
+        forEachChunk(pool, chunks - 1, c -> {
+            int sum = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+            }
+            offsets[c] = sum;
+        });
+        int carry = 0;
+        for (int c = 0; c < chunks; c++) {
+            int sum = offsets[c];
+            offsets[c] = carry;
+            carry += sum;
+        }
+        forEachChunk(pool, chunks, c -> {
+            int sum = offsets[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                int value = a[i];
+                a[i] = sum;
+                sum += value;
+            }
+            if (c == chunks - 1) {
+                offsets[chunks] = sum;
+            }
+        });
+        return offsets[chunks];
+    }
+
+    public static void inclusiveScan(ForkJoinPool pool, long[] a) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        long[] offsets = new long[chunks];
+        forEachChunk(pool, chunks - 1, c -> {
+            long sum = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+            }
+            offsets[c] = sum;
+        });
+        long carry = 0;
+        for (int c = 0; c < chunks; c++) {
+            long sum = offsets[c];
+            offsets[c] = carry;
+            carry += sum;
+        }
+        forEachChunk(pool, chunks, c -> {
+            long sum = offsets[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+                a[i] = sum;
+            }
+        });
+    }
+
+    public static long exclusiveScan(ForkJoinPool pool, long[] a) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        long[] offsets = new long[chunks + 1];
+        forEachChunk(pool, chunks - 1, c -> {
+            long sum = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+            }
+            offsets[c] = sum;
+        });
+        long carry = 0;
+        for (int c = 0; c < chunks; c++) {
+            long sum = offsets[c];
+            offsets[c] = carry;
+            carry += sum;
+        }
+        forEachChunk(pool, chunks, c -> {
+            long sum = offsets[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                long value = a[i];
+                a[i] = sum;
+                sum += value;
+            }
+            if (c == chunks - 1) {
+                offsets[chunks] = sum;
+            }
+        });
+        return offsets[chunks];
+    }
+
+    public static void inclusiveScan(ForkJoinPool pool, double[] a) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        double[] offsets = new double[chunks];
+        forEachChunk(pool, chunks - 1, c -> {
+            double sum = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+            }
+            offsets[c] = sum;
+        });
+        double carry = 0;
+        for (int c = 0; c < chunks; c++) {
+            double sum = offsets[c];
+            offsets[c] = carry;
+            carry += sum;
+        }
+        forEachChunk(pool, chunks, c -> {
+            double sum = offsets[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+                a[i] = sum;
+            }
+        });
+    }
+
+    public static double exclusiveScan(ForkJoinPool pool, double[] a) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        double[] offsets = new double[chunks + 1];
+        forEachChunk(pool, chunks - 1, c -> {
+            double sum = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                sum += a[i];
+            }
+            offsets[c] = sum;
+        });
+        double carry = 0;
+        for (int c = 0; c < chunks; c++) {
+            double sum = offsets[c];
+            offsets[c] = carry;
+            carry += sum;
+        }
+        forEachChunk(pool, chunks, c -> {
+            double sum = offsets[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                double value = a[i];
+                a[i] = sum;
+                sum += value;
+            }
+            if (c == chunks - 1) {
+                offsets[chunks] = sum;
+            }
+        });
+        return offsets[chunks];
+    }
+
+    // ---------------- 分段归约 ----------------
+
+    // 分段求和，第 s 段是 [offsets[s], offsets[s + 1])，offsets 必须单调不减，返回每段的和，空段的和为 0。
+    // 按元素而不是按段分块，所以即使段的长度相差很大（ 比如只有一个很长的段 ）也能均匀地并行。
+    // 完全落在一个块里的段由这个块直接写出结果；跨越块边界的段，每个块只记录它负责的那一部分，最后按块的顺序合并
+    public static long[] segmentedSum(ForkJoinPool pool, int[] values, int[] offsets) {
+        return segmentedSum(pool, values.length, offsets, (from, to) -> {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            return sum;
+        });
+    }
+
+    public static long[] segmentedSum(ForkJoinPool pool, long[] values, int[] offsets) {
+        return segmentedSum(pool, values.length, offsets, (from, to) -> {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            return sum;
+        });
+    }
+
+    public static double[] segmentedSum(ForkJoinPool pool, double[] values, int[] offsets) {
+        int segments = checkOffsets(values.length, offsets);
+        double[] sums = new double[segmentSlots(pool, offsets)];
+        segmentedSum(pool, offsets, new SegmentSums() {
+            @Override
+            public void sum(int from, int to, int slot) {
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += values[i];
+                }
+                sums[slot] = sum;
+            }
+
+            @Override
+            public void merge(int slot, int segment) {
+                sums[segment] += sums[slot];
+            }
+        });
+        return Arrays.copyOf(sums, segments);
+    }
+
+    private interface LongRangeSum {
+        long sum(int from, int to);
+    }
+
+    private static long[] segmentedSum(ForkJoinPool pool, int length, int[] offsets, LongRangeSum rangeSum) {
+        int segments = checkOffsets(length, offsets);
+        long[] sums = new long[segmentSlots(pool, offsets)];
+        segmentedSum(pool, offsets, new SegmentSums() {
+            @Override
+            public void sum(int from, int to, int slot) {
+                sums[slot] = rangeSum.sum(from, to);
+            }
+
+            @Override
+            public void merge(int slot, int segment) {
+                sums[segment] += sums[slot];
+            }
+        });
+        return Arrays.copyOf(sums, segments);
+    }
+
+    // 分段求和中和元素类型有关的部分。结果存放在 segmentSlots() 个位置里：[0, segments) 是每段的和，
+    // 之后每个块占两个位置，存放它和跨越块边界的段相交部分的和，最后由 merge() 加到对应的段上
+    private interface SegmentSums {
+        void sum(int from, int to, int slot);
+
+        void merge(int slot, int segment);
+    }
+
+    private static int segmentChunks(ForkJoinPool pool, int[] offsets) {
+        return chunkCount(pool, offsets[offsets.length - 1] - offsets[0]);
+    }
+
+    private static int segmentSlots(ForkJoinPool pool, int[] offsets) {
+        return offsets.length - 1 + 2 * segmentChunks(pool, offsets);
+    }
+
+    // offsets 必须已经用 checkOffsets() 检查过
+    private static void segmentedSum(ForkJoinPool pool, int[] offsets, SegmentSums sums) {
+        int segments = offsets.length - 1;
+        if (segments == 0) {
+            return;
+        }
+        int base = offsets[0];
+        int n = offsets[segments] - base;
+        int chunks = segmentChunks(pool, offsets);
+        // 每个块最多和两个跨越边界的段相交：从块之前开始的段（ head ）和在块之后结束的段（ tail ），
+        // 一个段同时跨越块的两端时只记在 head 里
+        int[] headSegments = new int[chunks];
+        int[] tailSegments = new int[chunks];
+        forEachChunk(pool, chunks, c -> {
+            int start = base + chunkStart(c, chunks, n);
+            int end = base + chunkStart(c + 1, chunks, n);
+            headSegments[c] = -1;
+            tailSegments[c] = -1;
+            for (int s = start < end ? segmentOf(offsets, start) : segments; s < segments && offsets[s] < end; s++) {
+                int from = Math.max(start, offsets[s]);
+                int to = Math.min(end, offsets[s + 1]);
+                if (from >= to) {
+                    continue;
+                }
+                if (offsets[s] < start) {
+                    headSegments[c] = s;
+                    sums.sum(from, to, segments + 2 * c);
+                } else if (offsets[s + 1] > end) {
+                    tailSegments[c] = s;
+                    sums.sum(from, to, segments + 2 * c + 1);
+                } else {
+                    sums.sum(from, to, s);
+                }
+            }
+        });
+        // 跨越块边界的段在任何块里都不会被完整写出，所以它的位置一直是 0，按块的顺序累加各部分即可
+        for (int c = 0; c < chunks; c++) {
+            if (headSegments[c] >= 0) {
+                sums.merge(segments + 2 * c, headSegments[c]);
+            }
+            if (tailSegments[c] >= 0) {
+                sums.merge(segments + 2 * c + 1, tailSegments[c]);
+            }
+        }
+    }
+
+    private static int checkOffsets(int length, int[] offsets) {
+        if (offsets.length == 0) {
+            throw new IllegalArgumentException("offsets must contain at least one element");
+        }
+        if (offsets[0] < 0 || offsets[offsets.length - 1] > length) {
+            throw new IndexOutOfBoundsException("offsets out of range [0, " + length + "]");
+        }
+        for (int s = 1; s < offsets.length; s++) {
+            if (offsets[s] < offsets[s - 1]) {
+                throw new IllegalArgumentException("offsets must be non-decreasing at " + s);
+            }
+        }
+        return offsets.length - 1;
+    }
+
+    // 包含下标 index 的段，即最后一个满足 offsets[s] <= index 的 s
+    private static int segmentOf(int[] offsets, int index) {
+        int lo = 0;
+        int hi = offsets.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // ---------------- 过滤（ 压缩 ） ----------------
+
+    // 返回满足 predicate 的元素，保持原来的顺序。
+    // 第一遍并行统计每个块里满足条件的元素个数，对个数做前缀和得到每个块在结果中的起始位置，第二遍并行写入。
+    // predicate 对每个元素会被调用两次，必须没有副作用
+    public static int[] filter(ForkJoinPool pool, int[] a, IntPredicate predicate) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        int[] positions = new int[chunks];
+        forEachChunk(pool, chunks, c -> {
+            int count = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                if (predicate.test(a[i])) {
+                    count++;
+                }
+            }
+            positions[c] = count;
+        });
+        int[] result = new int[exclusiveCounts(positions)];
+        forEachChunk(pool, chunks, c -> {
+            int k = positions[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                if (predicate.test(a[i])) {
+                    result[k++] = a[i];
+                }
+            }
+        });
+        return result;
+    }
+
+    public static long[] filter(ForkJoinPool pool, long[] a, LongPredicate predicate) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        int[] positions = new int[chunks];
+        forEachChunk(pool, chunks, c -> {
+            int count = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                if (predicate.test(a[i])) {
+                    count++;
+                }
+            }
+            positions[c] = count;
+        });
+        long[] result = new long[exclusiveCounts(positions)];
+        forEachChunk(pool, chunks, c -> {
+            int k = positions[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                if (predicate.test(a[i])) {
+                    result[k++] = a[i];
+                }
+            }
+        });
+        return result;
+    }
+
+    public static double[] filter(ForkJoinPool pool, double[] a, DoublePredicate predicate) {
+        int n = a.length;
+        int chunks = chunkCount(pool, n);
+        int[] positions = new int[chunks];
+        forEachChunk(pool, chunks, c -> {
+            int count = 0;
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                if (predicate.test(a[i])) {
+                    count++;
+                }
+            }
+            positions[c] = count;
+        });
+        double[] result = new double[exclusiveCounts(positions)];
+        forEachChunk(pool, chunks, c -> {
+            int k = positions[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                if (predicate.test(a[i])) {
+                    result[k++] = a[i];
+                }
+            }
+        });
+        return result;
+    }
+
+    // 把每块的个数原地换成每块的起始位置，返回总数
+    private static int exclusiveCounts(int[] counts) {
+        int total = 0;
+        for (int c = 0; c < counts.length; c++) {
+            int count = counts[c];
+            counts[c] = total;
+            total += count;
+        }
+        return total;
+    }
+
+    // ---------------- 直方图 ----------------
+
+    // 统计 keys 中每个值出现的次数，值必须在 [0, bins) 范围内，否则抛出 ArrayIndexOutOfBoundsException。
+    // 每个块先统计到自己私有的计数数组里，没有任何共享写；子任务的计数在父任务里合并，见 class HistogramTask
+    public static long[] histogram(ForkJoinPool pool, int[] keys, int bins) {
+        return histogram(pool, keys.length, bins, (from, to, counts) -> {
+            // 越界的值由数组的边界检查抛出 ArrayIndexOutOfBoundsException
+            for (int i = from; i < to; i++) {
+                counts[keys[i]]++;
+            }
+        });
+    }
+
+    // 把 [min, max] 等分成 bins 个桶，统计落在每个桶里的元素个数，max 落在最后一个桶里；
+    // 不在 [min, max] 范围内的值和 NaN 不计入任何桶
+    public static long[] histogram(ForkJoinPool pool, double[] values, double min, double max, int bins) {
+        if (!(min < max)) {
+            throw new IllegalArgumentException("min must be less than max: [" + min + ", " + max + "]");
+        }
+        double scale = bins / (max - min);
+        int last = bins - 1;
+        return histogram(pool, values.length, bins, (from, to, counts) -> {
+            for (int i = from; i < to; i++) {
+                double value = values[i];
+                if (value >= min && value <= max) {
+                    counts[Math.min((int) ((value - min) * scale), last)]++;
+                }
+            }
+        });
+    }
+
+    // 把下标 [from, to) 的元素统计到 counts 中，每个块调用一次
+    private interface ChunkCounter {
+        void count(int from, int to, int[] counts);
+    }
+
+    private static long[] histogram(ForkJoinPool pool, int n, int bins, ChunkCounter counter) {
+        if (bins <= 0) {
+            throw new IllegalArgumentException("bins must be positive: " + bins);
+        }
+        int chunks = chunkCount(pool, n);
+        HistogramTask task = new HistogramTask(counter, n, bins, chunks, 0, chunks);
+        int[] counts = chunks == 1 ? task.compute() : pool.invoke(task);
+        long[] result = new long[bins];
+        for (int bin = 0; bin < bins; bin++) {
+            result[bin] = counts[bin];
+        }
+        return result;
+    }
+
+    // 对块 [from, to) 二分统计，左半部分 fork，右半部分在当前线程里计算，左半部分的计数合并到右半部分后就被丢弃。
+    // 同时存活的计数数组只有 并行度 × 递归深度 个左右，而不是每块一个：桶很多时 块数 × 桶数 的计数会比数据本身还大。
+    // 元素总数不超过 int 的范围，合并后的计数也用 int[]，比 long[] 节省一半内存
+    private static final class HistogramTask extends RecursiveTask<int[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkCounter counter;
+
+        private final int n;
+
+        private final int bins;
+
+        private final int chunks;
+
+        private final int from;
+
+        private final int to;
+
+        HistogramTask(ChunkCounter counter, int n, int bins, int chunks, int from, int to) {
+            this.counter = counter;
+            this.n = n;
+            this.bins = bins;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from == 1) {
+                int[] counts = new int[bins];
+                counter.count(chunkStart(from, chunks, n), chunkStart(to, chunks, n), counts);
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            HistogramTask left = new HistogramTask(counter, n, bins, chunks, from, mid);
+            left.fork();
+            int[] counts = new HistogramTask(counter, n, bins, chunks, mid, to).compute();
+            int[] leftCounts = left.join();
+            for (int bin = 0; bin < bins; bin++) {
+                counts[bin] += leftCounts[bin];
+            }
+            return counts;
+        }
+    }
+
+    // ---------------- 分块 ----------------
+
+    static int chunkCount(ForkJoinPool pool, int n) {
+        int parallelism = pool.getParallelism();
+        if (n <= DEFAULT_GRANULARITY || parallelism <= 1) {
+            return 1;
+        }
+        return (int) Math.min(n / DEFAULT_GRANULARITY, (long) parallelism * CHUNKS_PER_THREAD);
+    }
+
+    // 第 chunk 块的起始下标，最后一块的结束下标是 chunkStart(chunks, chunks, n) == n
+    static int chunkStart(int chunk, int chunks, int n) {
+        return (int) ((long) n * chunk / chunks);
+    }
+
+    // 并行地对每个块调用 body，只有一个块时直接在当前线程里执行。
+    // pool.invoke() 返回之前所有块的写入都对调用者可见，所以两遍之间不需要额外的同步
+    static void forEachChunk(ForkJoinPool pool, int chunks, IntConsumer body) {
+        if (chunks <= 0) {
+            return;
+        }
+        if (chunks == 1) {
+            body.accept(0);
+        } else {
+            pool.invoke(new ChunkAction(body, 0, chunks));
+        }
+    }
+
+    // 对块 [from, to) 二分，和 RangeSumTask 一样只 fork 左半部分，右半部分在当前线程里计算
+    private static final class ChunkAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer body;
+
+        private final int from;
+
+        private final int to;
+
+        ChunkAction(IntConsumer body, int from, int to) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                body.accept(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            ChunkAction left = new ChunkAction(body, from, mid);
+            left.fork();
+            new ChunkAction(body, mid, to).compute();
+            left.join();
+        }
+    }
+}
+
+// 按名字创建和管理相互隔离的 ForkJoinPool，并定期采样每个池的运行状态。
+// 不同类型的负载（ 比如 CPU 密集的批处理和请求路径上的短任务 ）放在不同的池里，批处理任务再多也不会占满请求路径上的线程；
+// 公共池 commonPool() 被整个 JVM 共享（ 并行流、CompletableFuture 的默认执行器等都在用 ），无法做到这种隔离。
+// 采样由一个守护线程按固定周期执行，读取的都是 ForkJoinPool 自带的统计方法，不会影响池里的任务
+class ForkJoinPoolRegistry implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ForkJoinPoolRegistry.class.getName());
+
+    private final ConcurrentHashMap<String, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, PoolMetrics> metrics = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService sampler;
+
+    public ForkJoinPoolRegistry(long samplePeriod, TimeUnit unit) {
+        if (samplePeriod <= 0) {
+            throw new IllegalArgumentException("samplePeriod must be positive: " + samplePeriod);
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fork-join-pool-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleAll, samplePeriod, samplePeriod, unit);
+    }
+
+    // 使用默认的线程工厂，工作线程命名为 name-worker-N；未捕获的异常记录到日志里
+    public ForkJoinPool create(String name, int parallelism) {
+        return create(name, parallelism, namedThreadFactory(name), null, false);
+    }
+
+    // asyncMode 为 true 时每个工作线程按 FIFO 顺序执行自己队列里从未 join 的任务，适合事件类型的任务
+    public ForkJoinPool create(String name, int parallelism, ForkJoinPool.ForkJoinWorkerThreadFactory factory,
+                               Thread.UncaughtExceptionHandler handler, boolean asyncMode) {
+        Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(factory, "factory");
+        PoolMetrics poolMetrics = new PoolMetrics(name);
+        if (metrics.putIfAbsent(name, poolMetrics) != null) {
+            throw new IllegalStateException("pool already exists: " + name);
+        }
+        // 包装一层异常处理器，先计数再交给调用者的处理器，没有的话就记到日志里
+        Thread.UncaughtExceptionHandler counting = (thread, e) -> {
+            poolMetrics.uncaughtExceptions.increment();
+            if (handler != null) {
+                handler.uncaughtException(thread, e);
+            } else {
+                logger.log(Level.WARNING, "uncaught exception in " + thread.getName(), e);
+            }
+        };
+        ForkJoinPool pool;
+        try {
+            pool = new ForkJoinPool(parallelism, factory, counting, asyncMode);
+        } catch (RuntimeException e) {
+            metrics.remove(name);
+            throw e;
+        }
+        pools.put(name, pool);
+        return pool;
+    }
+
+    public ForkJoinPool get(String name) {
+        ForkJoinPool pool = pools.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("unknown pool: " + name);
+        }
+        return pool;
+    }
+
+    public PoolMetrics getMetrics(String name) {
+        PoolMetrics poolMetrics = metrics.get(name);
+        if (poolMetrics == null) {
+            throw new IllegalArgumentException("unknown pool: " + name);
+        }
+        return poolMetrics;
+    }
+
+    // 按名字排序的所有池的指标
+    public Map<String, PoolMetrics> getAllMetrics() {
+        return Collections.unmodifiableMap(new TreeMap<>(metrics));
+    }
+
+    // 关闭并移除一个池，已经提交的任务会继续执行完
+    public void shutdown(String name) {
+        ForkJoinPool pool = pools.remove(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("unknown pool: " + name);
+        }
+        metrics.remove(name);
+        pool.shutdown();
+    }
+
+    // 立即采样一次，也是采样线程定期调用的方法
+    public void sampleAll() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, ForkJoinPool> entry : pools.entrySet()) {
+            PoolMetrics poolMetrics = metrics.get(entry.getKey());
+            if (poolMetrics != null) {
+                poolMetrics.sample(entry.getValue(), now);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+        for (ForkJoinPool pool : pools.values()) {
+            pool.shutdown();
+        }
+        pools.clear();
+        metrics.clear();
+    }
+
+    // 工作线程命名为 name-worker-N，和默认工厂一样是守护线程
+    static ForkJoinPool.ForkJoinWorkerThreadFactory namedThreadFactory(String name) {
+        AtomicInteger index = new AtomicInteger();
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-worker-" + index.incrementAndGet());
+            return thread;
+        };
+    }
+
+    // 一次采样的结果，不可变
+    static final class PoolSample {
+
+        final long timestampNanos;
+
+        final int parallelism;
+
+        final int poolSize;
+
+        final int activeThreadCount;
+
+        final int runningThreadCount;
+
+        final long queuedTaskCount;
+
+        final int queuedSubmissionCount;
+
+        final long stealCount;
+
+        // 和上一次采样相比每秒的窃取次数
+        final double stealsPerSecond;
+
+        PoolSample(long timestampNanos, int parallelism, int poolSize, int activeThreadCount, int runningThreadCount,
+                   long queuedTaskCount, int queuedSubmissionCount, long stealCount, double stealsPerSecond) {
+            this.timestampNanos = timestampNanos;
+            this.parallelism = parallelism;
+            this.poolSize = poolSize;
+            this.activeThreadCount = activeThreadCount;
+            this.runningThreadCount = runningThreadCount;
+            this.queuedTaskCount = queuedTaskCount;
+            this.queuedSubmissionCount = queuedSubmissionCount;
+            this.stealCount = stealCount;
+            this.stealsPerSecond = stealsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "parallelism=" + parallelism + ", poolSize=" + poolSize + ", active=" + activeThreadCount
+                    + ", running=" + runningThreadCount + ", queuedTasks=" + queuedTaskCount
+                    + ", queuedSubmissions=" + queuedSubmissionCount + ", steals=" + stealCount
+                    + String.format(", steals/s=%.1f", stealsPerSecond);
+        }
+    }
+
+    // 一个池的指标：最近一次采样、采样期间的峰值和未捕获异常的次数。
+    // 写入在 sample() 里加锁（ 采样线程和手动调用 sampleAll() 的线程可能同时写 ），读取只需要 volatile
+    static final class PoolMetrics {
+
+        private final String name;
+
+        private final LongAdder uncaughtExceptions = new LongAdder();
+
+        private volatile PoolSample last;
+
+        private volatile long samples;
+
+        private volatile long maxQueuedTaskCount;
+
+        private volatile int maxActiveThreadCount;
+
+        private volatile int maxQueuedSubmissionCount;
+
+        PoolMetrics(String name) {
+            this.name = name;
+        }
+
+        synchronized void sample(ForkJoinPool pool, long now) {
+            long stealCount = pool.getStealCount();
+            PoolSample previous = last;
+            double stealsPerSecond = 0;
+            if (previous != null && now > previous.timestampNanos) {
+                stealsPerSecond = (stealCount - previous.stealCount) * 1e9 / (now - previous.timestampNanos);
+            }
+            PoolSample sample = new PoolSample(now, pool.getParallelism(), pool.getPoolSize(),
+                    pool.getActiveThreadCount(), pool.getRunningThreadCount(), pool.getQueuedTaskCount(),
+                    pool.getQueuedSubmissionCount(), stealCount, stealsPerSecond);
+            maxQueuedTaskCount = Math.max(maxQueuedTaskCount, sample.queuedTaskCount);
+            maxActiveThreadCount = Math.max(maxActiveThreadCount, sample.activeThreadCount);
+            maxQueuedSubmissionCount = Math.max(maxQueuedSubmissionCount, sample.queuedSubmissionCount);
+            samples++;
+            last = sample;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // 还没有采样时返回 null
+        public PoolSample getLastSample() {
+            return last;
+        }
+
+        public long getSampleCount() {
+            return samples;
+        }
+
+        public long getMaxQueuedTaskCount() {
+            return maxQueuedTaskCount;
+        }
+
+        public int getMaxActiveThreadCount() {
+            return maxActiveThreadCount;
+        }
+
+        public int getMaxQueuedSubmissionCount() {
+            return maxQueuedSubmissionCount;
+        }
+
+        public long getUncaughtExceptionCount() {
+            return uncaughtExceptions.sum();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + last + ", maxQueuedTasks=" + maxQueuedTaskCount
+                    + ", maxActive=" + maxActiveThreadCount + ", maxQueuedSubmissions=" + maxQueuedSubmissionCount
+                    + ", uncaughtExceptions=" + getUncaughtExceptionCount();
+        }
+    }
+}
@@ -1,4 +1,14 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class FutureDemo {
     public static void main(String[] args) throws InterruptedException, ExecutionException, TimeoutException {
@@ -96,6 +106,50 @@ public class FutureDemo {
         // }
         // 这段代码，对 SquareCalculator 类的做了一处简单的更改，使得我们的执行器拥有了 2 个同步线程。
         // 2 个任务是同时开始和结束运行的，整个过程大约需要 1 秒钟就能完成。
+
+
+        // 六、合并相同的计算
+        // SquareCalculator.calculate() 每次调用都会提交一个新的 1 秒钟的计算，即使很多调用者同时请求同一个输入。
+        // 缓存失效之后大量相同的请求同时到达时，这些重复的计算会一下子压垮后端。
+        // calculateCached() 使用 AsyncLoadingCache 缓存 CompletableFuture，同一个输入同时被请求时共享同一个正在进行的计算。
+        // 见 class AsyncLoadingCache
+        SquareCalculator cachedCalculator = new SquareCalculator();
+        List<CompletableFuture<Integer>> herd = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            herd.add(cachedCalculator.calculateCached(10));
+        }
+        CompletableFuture.allOf(herd.toArray(new CompletableFuture<?>[0])).get();
+        // 10 个调用者只触发了 1 次计算，之后的调用直接命中缓存
+        System.out.println(cachedCalculator.getCache().getLoadCount() == 1); // true
+        System.out.println(cachedCalculator.calculateCached(10).getNow(-1) == 100); // true
+        // 近似 LRU：50 个热点 key 每轮都被访问，每轮再访问一个新的冷 key，冷 key 的扫描不会把热点 key 挤出去
+        AsyncLoadingCache<Integer, Integer> lruCache =
+                new AsyncLoadingCache<>(key -> CompletableFuture.completedFuture(key), 100, 60, 30, TimeUnit.SECONDS);
+        for (int round = 0; round < 2000; round++) {
+            for (int hot = 0; hot < 50; hot++) {
+                lruCache.get(hot);
+            }
+            lruCache.get(1000 + round);
+        }
+        // 50 次热点 key 的首次加载加上 2000 次冷 key 的加载，热点 key 几乎没有被重新加载
+        System.out.println(lruCache.getLoadCount() - 2050 < 50); // true
+
+
+        // 七、合并成批量计算
+        // 即使输入各不相同，每次 calculate() 也是线程池中的一个单独的任务，有自己的 Future 和线程切换。
+        // 下游的批量接口通常比逐个调用高效得多，calculateBatched() 使用 MicroBatcher 把同时到达的单个调用合并成一次批量计算。
+        // 见 class MicroBatcher
+        SquareCalculator batchedCalculator = new SquareCalculator();
+        List<CompletableFuture<Integer>> batched = new ArrayList<>();
+        long batchStart = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            batched.add(batchedCalculator.calculateBatched(i));
+        }
+        CompletableFuture.allOf(batched.toArray(new CompletableFuture<?>[0])).get();
+        // 100 个输入只用了几次批量计算，总共 1 到 2 秒，而不是 2 个线程逐个计算的 50 秒
+        System.out.println(batched.get(99).get() == 99 * 99); // true
+        System.out.println(batchedCalculator.getBatcher().getBatchCount() < 100); // true
+        System.out.println(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - batchStart) < 5); // true
     }
 }
 
@@ -103,10 +157,520 @@ class SquareCalculator {
 
     private ExecutorService executorService = Executors.newFixedThreadPool(2);
 
+    // 结果缓存 1 分钟，30 秒之后在后台刷新
+    private final AsyncLoadingCache<Integer, Integer> cache =
+            new AsyncLoadingCache<>(this::calculateAsync, 1000, 60, 30, TimeUnit.SECONDS);
+
     public Future<Integer> calculate(Integer input) {
         return executorService.submit(() -> {
             Thread.sleep(1000);
             return input * input;
         });
     }
+
+    // 同一个输入同时被多次请求时只计算一次，算好之后直接返回缓存的结果
+    public CompletableFuture<Integer> calculateCached(Integer input) {
+        return cache.get(input);
+    }
+
+    public AsyncLoadingCache<Integer, Integer> getCache() {
+        return cache;
+    }
+
+    // 把单个输入的调用合并成批量计算，一批最多 100 个输入，最多等 1 毫秒
+    private final MicroBatcher<Integer, Integer> batcher =
+            new MicroBatcher<>(this::calculateAll, 100, 1000, TimeUnit.MICROSECONDS, 10_000, executorService);
+
+    // 和 calculate() 一样一次算一个输入，但同时到达的调用会合并成一次 calculateAll()
+    public CompletableFuture<Integer> calculateBatched(Integer input) {
+        return batcher.get(input);
+    }
+
+    public MicroBatcher<Integer, Integer> getBatcher() {
+        return batcher;
+    }
+
+    // 批量计算：不管多少个输入，都只有一次 1 秒钟的开销
+    private Map<Integer, Integer> calculateAll(List<Integer> inputs) {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        Map<Integer, Integer> squares = new HashMap<>();
+        for (Integer input : inputs) {
+            squares.put(input, input * input);
+        }
+        return squares;
+    }
+
+    private CompletableFuture<Integer> calculateAsync(Integer input) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        executorService.submit(() -> {
+            try {
+                Thread.sleep(1000);
+                result.complete(input * input);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+}
+// 按 key 缓存异步计算结果的 CompletableFuture，用来防止缓存失效之后大量相同的请求同时压到后端（ thundering herd ）：
+// 1、同一个 key 同时被多次请求时共享同一个正在进行的计算，loader 只被调用一次；
+// 2、计算失败（ 包括被取消 ）的 Future 会被立刻移除，下一次请求重新计算，不会把失败缓存起来；
+// 3、值从计算完成时起超过 ttl 就过期，过期的值不再返回；超过 refreshAfter（ 小于 ttl ）之后第一次访问会在后台重新计算一次，
+//    在新值算出来之前继续返回旧值，热点 key 不会因为过期而让调用者等待（ refresh-ahead ）；
+// 4、条目数超过 maxSize 时做近似 LRU 淘汰：从 map 中随机取 EVICTION_SAMPLES 个条目，淘汰其中最久没有访问的一个（ 类似 Redis 的做法 ），
+//    不需要维护全局的访问顺序链表，读操作也就不需要加锁。随机取样靠 ConcurrentHashMap 的 Spliterator：每次 trySplit() 把哈希表的下标范围对半分，
+//    随机选一半一直分到只剩一两个条目，再从中随机取一个，代价是 O(log n) 次拆分；每次都从头遍历的话取到的总是哈希表开头的那几个条目。
+//    还在计算中的条目不会被淘汰，否则同一个 key 的请求又会各自触发计算。
+// get() 返回的 Future 被所有请求同一个 key 的调用者共享，调用者不应该完成或者取消它。
+class AsyncLoadingCache<K, V> {
+
+    private static final int EVICTION_SAMPLES = 8;
+
+    private static final int EVICTION_PROBES = 4 * EVICTION_SAMPLES;
+
+    // 连续这么多轮取样都没能淘汰任何条目（ 比如全部都在计算中 ）就暂时放弃，下一次插入时再试
+    private static final int EVICTION_ATTEMPTS = 4;
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final Function<? super K, ? extends CompletableFuture<V>> loader;
+
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final long refreshAfterNanos;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder loads = new LongAdder();
+
+    public AsyncLoadingCache(Function<? super K, ? extends CompletableFuture<V>> loader, int maxSize,
+                             long ttl, long refreshAfter, TimeUnit unit) {
+        Objects.requireNonNull(loader, "loader");
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        if (ttl <= 0 || refreshAfter <= 0 || refreshAfter > ttl) {
+            throw new IllegalArgumentException("require 0 < refreshAfter <= ttl: " + refreshAfter + ", " + ttl);
+        }
+        this.loader = loader;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.refreshAfterNanos = unit.toNanos(refreshAfter);
+    }
+
+    public CompletableFuture<V> get(K key) {
+        Objects.requireNonNull(key, "key");
+        while (true) {
+            long now = System.nanoTime();
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                Entry<V> created = new Entry<>(new CompletableFuture<>(), now);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    load(key, created);
+                    evictIfNeeded();
+                    return created.future;
+                }
+            }
+            if (!entry.isLoaded()) {
+                // 正在计算，共享同一个 Future
+                hits.increment();
+                entry.accessNanos = now;
+                return entry.future;
+            }
+            long age = now - entry.loadedNanos;
+            if (age >= ttlNanos) {
+                entries.remove(key, entry);
+                continue;
+            }
+            hits.increment();
+            entry.accessNanos = now;
+            if (age >= refreshAfterNanos && entry.refreshing.compareAndSet(false, true)) {
+                refresh(key, entry);
+            }
+            return entry.future;
+        }
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // 命中次数，包括共享正在进行的计算
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    // 调用 loader 的次数，包括后台刷新
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    private void load(K key, Entry<V> entry) {
+        CompletableFuture<V> loaded = callLoader(key);
+        loaded.whenComplete((value, error) -> {
+            if (error == null) {
+                entry.loadedNanos = System.nanoTime();
+                entry.loaded = true;
+                entry.future.complete(value);
+            } else {
+                entry.future.completeExceptionally(error);
+            }
+        });
+        // 计算失败或者被某个调用者取消时移除，下一次请求重新计算
+        entry.future.whenComplete((value, error) -> {
+            if (error != null) {
+                entries.remove(key, entry);
+            }
+        });
+    }
+
+    // 成功时用新值替换旧的条目；失败时保留旧值直到过期，下一次访问会再尝试刷新
+    private void refresh(K key, Entry<V> entry) {
+        callLoader(key).whenComplete((value, error) -> {
+            if (error == null) {
+                long now = System.nanoTime();
+                Entry<V> refreshed = new Entry<>(CompletableFuture.completedFuture(value), now);
+                refreshed.loadedNanos = now;
+                refreshed.loaded = true;
+                entries.replace(key, entry, refreshed);
+            } else {
+                entry.refreshing.set(false);
+            }
+        });
+    }
+
+    private CompletableFuture<V> callLoader(K key) {
+        loads.increment();
+        try {
+            return Objects.requireNonNull(loader.apply(key), "loader returned null");
+        } catch (Throwable e) {
+            CompletableFuture<V> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void evictIfNeeded() {
+        int misses = 0;
+        while (entries.size() > maxSize && misses < EVICTION_ATTEMPTS) {
+            long now = System.nanoTime();
+            K victim = null;
+            Entry<V> victimEntry = null;
+            long oldest = Long.MIN_VALUE;
+            boolean removed = false;
+            // 随机取到的区间可能是空的，空的和还在计算中的都不算一个样本，最多尝试 EVICTION_PROBES 次
+            int sampled = 0;
+            for (int i = 0; i < EVICTION_PROBES && sampled < EVICTION_SAMPLES; i++) {
+                Map.Entry<K, Entry<V>> candidate = sample();
+                if (candidate == null) {
+                    continue;
+                }
+                Entry<V> entry = candidate.getValue();
+                if (!entry.isLoaded()) {
+                    continue;
+                }
+                // 顺便清理已经过期的条目
+                if (now - entry.loadedNanos >= ttlNanos) {
+                    removed |= entries.remove(candidate.getKey(), entry);
+                    continue;
+                }
+                sampled++;
+                long idle = now - entry.accessNanos;
+                if (victim == null || idle > oldest) {
+                    victim = candidate.getKey();
+                    victimEntry = entry;
+                    oldest = idle;
+                }
+            }
+            if (victim != null) {
+                removed |= entries.remove(victim, victimEntry);
+            }
+            misses = removed ? 0 : misses + 1;
+        }
+    }
+
+    // 随机取一个条目，随机选中的区间是空的时返回 null
+    private Map.Entry<K, Entry<V>> sample() {
+        Spliterator<Map.Entry<K, Entry<V>>> region = entries.entrySet().spliterator();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (region.estimateSize() > 2) {
+            Spliterator<Map.Entry<K, Entry<V>>> prefix = region.trySplit();
+            if (prefix == null) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                region = prefix;
+            }
+        }
+        // 区间里总是取第一个的话，连续的 key 在哈希表里也是连续的，每个区间开头的那几个会被反复选中
+        List<Map.Entry<K, Entry<V>>> candidates = new ArrayList<>(4);
+        region.forEachRemaining(candidates::add);
+        return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+    }
+
+    private static final class Entry<V> {
+
+        final CompletableFuture<V> future;
+
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        volatile boolean loaded;
+
+        volatile long loadedNanos;
+
+        volatile long accessNanos;
+
+        Entry(CompletableFuture<V> future, long now) {
+            this.future = future;
+            this.accessNanos = now;
+        }
+
+        boolean isLoaded() {
+            return loaded;
+        }
+    }
+}
+
+// 把逐个 key 的调用合并成批量调用的 micro-batcher：下游的批量接口往往比逐个调用高效得多，但调用方的代码是一次一个 key 写的。
+// 1、get(key) 把请求放进有界队列并立刻返回 CompletableFuture，队列满了直接返回以 RejectedExecutionException 失败的 Future；
+// 2、一个分派线程从队列里收集请求，凑够一批或者从这一批的第一个请求起等了 maxDelay 就把这一批交给 executor，
+//    每批调用一次 bulk 函数（ List<K> -> Map<K, V> ），再逐个完成每个调用者的 Future；同一批里重复的 key 只查询一次；
+// 3、批量大小随到达率自适应：按指数加权平均估计请求的到达率，「 maxDelay 之内预计能到达的请求数 」 就是这一批要凑的数量，
+//    请求稀少时不用白等 maxDelay，请求密集时一批最多 maxBatchSize 个；已经在队列里的请求总是一起带走，不额外等待；
+// 4、同一时刻最多 maxInFlightBatches 批交给了 executor 还没执行完，达到上限时分派线程不再从队列里取请求，
+//    请求在有界队列里积压，队列满了 get() 就直接拒绝，而不是源源不断地堆进 executor 自己的（ 往往是无界的 ）队列。
+// bulk 函数没有返回的 key 以 null 完成，bulk 函数抛出异常时这一批的所有 Future 都以这个异常失败。
+class MicroBatcher<K, V> implements AutoCloseable {
+
+    static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = Runtime.getRuntime().availableProcessors();
+
+    // 到达率的新样本权重
+    private static final double ALPHA = 0.2;
+
+    private final Function<? super List<K>, ? extends Map<K, V>> bulk;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    private final Executor executor;
+
+    private final BlockingQueue<Request<K, V>> queue;
+
+    // 已经交给 executor 还没执行完的批次，分派之前获取，runBatch() 结束时释放
+    private final Semaphore inFlight;
+
+    private final Thread dispatcher;
+
+    private volatile boolean closed;
+
+    // 以下两个字段只由分派线程写
+    private double arrivalsPerNano;
+
+    private long lastDispatchNanos = System.nanoTime();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    public MicroBatcher(Function<? super List<K>, ? extends Map<K, V>> bulk, int maxBatchSize, long maxDelay, TimeUnit unit,
+                        int capacity, Executor executor) {
+        this(bulk, maxBatchSize, maxDelay, unit, capacity, executor, DEFAULT_MAX_IN_FLIGHT_BATCHES);
+    }
+
+    public MicroBatcher(Function<? super List<K>, ? extends Map<K, V>> bulk, int maxBatchSize, long maxDelay, TimeUnit unit,
+                        int capacity, Executor executor, int maxInFlightBatches) {
+        Objects.requireNonNull(bulk, "bulk");
+        Objects.requireNonNull(executor, "executor");
+        if (maxBatchSize <= 0 || capacity <= 0 || maxInFlightBatches <= 0) {
+            throw new IllegalArgumentException("maxBatchSize, capacity and maxInFlightBatches must be positive: "
+                                               + maxBatchSize + ", " + capacity + ", " + maxInFlightBatches);
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maxDelay must not be negative: " + maxDelay);
+        }
+        this.bulk = bulk;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.inFlight = new Semaphore(maxInFlightBatches);
+        this.dispatcher = new Thread(this::dispatchLoop, "micro-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public CompletableFuture<V> get(K key) {
+        Objects.requireNonNull(key, "key");
+        Request<K, V> request = new Request<>(key);
+        if (closed || !queue.offer(request)) {
+            rejected.increment();
+            request.future.completeExceptionally(new RejectedExecutionException(closed ? "batcher is closed" : "queue is full"));
+        } else if (closed && queue.remove(request)) {
+            // 关闭的同时入队的请求可能错过分派线程最后一次 flushRemaining()，和关闭之后的请求一样拒绝；
+            // remove() 失败说明分派线程已经取走了它。get() 不会在调用者的线程里分派，也不会等在途批次的名额
+            rejected.increment();
+            request.future.completeExceptionally(new RejectedExecutionException("batcher is closed"));
+        }
+        return request.future;
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    // 当前按到达率估计的批量大小
+    public int getTargetBatchSize() {
+        return targetBatchSize();
+    }
+
+    // 停止接收新请求，队列中已有的请求仍然会被分派
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+    }
+
+    private void dispatchLoop() {
+        List<Request<K, V>> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!closed) {
+                // 先拿到在途批次的名额再从队列里取请求，executor 忙不过来时请求留在有界队列里
+                inFlight.acquire();
+                boolean dispatched = false;
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    int target = targetBatchSize();
+                    while (batch.size() < target) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        Request<K, V> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                    }
+                    dispatch(batch);
+                    dispatched = true;
+                } finally {
+                    if (!dispatched) {
+                        inFlight.release();
+                    }
+                }
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        } catch (InterruptedException e) {
+            // close()
+        }
+        if (!batch.isEmpty()) {
+            inFlight.acquireUninterruptibly();
+            dispatch(batch);
+        }
+        flushRemaining();
+    }
+
+    private void flushRemaining() {
+        List<Request<K, V>> rest = new ArrayList<>();
+        while (queue.drainTo(rest, maxBatchSize) > 0) {
+            inFlight.acquireUninterruptibly();
+            dispatch(rest);
+            rest = new ArrayList<>();
+        }
+    }
+
+    private int targetBatchSize() {
+        double expected = arrivalsPerNano * maxDelayNanos;
+        return (int) Math.max(1, Math.min(maxBatchSize, Math.ceil(expected)));
+    }
+
+    // 调用之前已经获取了 inFlight 的一个名额
+    private void dispatch(List<Request<K, V>> batch) {
+        if (Thread.currentThread() == dispatcher) {
+            long now = System.nanoTime();
+            long elapsed = Math.max(1, now - lastDispatchNanos);
+            double sample = (double) batch.size() / elapsed;
+            arrivalsPerNano = arrivalsPerNano == 0 ? sample : arrivalsPerNano + (sample - arrivalsPerNano) * ALPHA;
+            lastDispatchNanos = now;
+        }
+        batches.increment();
+        requests.add(batch.size());
+        try {
+            executor.execute(() -> runBatch(batch));
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            for (Request<K, V> request : batch) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void runBatch(List<Request<K, V>> batch) {
+        try {
+            completeBatch(batch);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private void completeBatch(List<Request<K, V>> batch) {
+        // 去掉重复的 key，保持第一次出现的顺序
+        Map<K, List<CompletableFuture<V>>> waiters = new LinkedHashMap<>();
+        for (Request<K, V> request : batch) {
+            waiters.computeIfAbsent(request.key, k -> new ArrayList<>(1)).add(request.future);
+        }
+        Map<K, V> values;
+        try {
+            values = Objects.requireNonNull(bulk.apply(new ArrayList<>(waiters.keySet())), "bulk returned null");
+        } catch (Throwable e) {
+            for (Request<K, V> request : batch) {
+                request.future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (Map.Entry<K, List<CompletableFuture<V>>> entry : waiters.entrySet()) {
+            V value = values.get(entry.getKey());
+            for (CompletableFuture<V> future : entry.getValue()) {
+                future.complete(value);
+            }
+        }
+    }
+
+    private static final class Request<K, V> {
+
+        final K key;
+
+        final CompletableFuture<V> future = new CompletableFuture<>();
+
+        Request(K key) {
+            this.key = key;
+        }
+    }
 }
@@ -0,0 +1,210 @@
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Guava 的 ListenableFuture 和 JDK 的 CompletableFuture 之间的双向转换。
+// 1、转换出来的 Future 本身就是源 Future 的回调：ListenableFuture -> CompletableFuture 时返回的 CompletableFuture 子类同时实现了 Runnable，
+//    直接作为 listener 注册；CompletableFuture -> ListenableFuture 时返回的 AbstractFuture 子类同时实现了 BiConsumer，直接传给 whenComplete()。
+//    每次转换只有这一个对象（ 加上 whenComplete() 自己的依赖节点 ），不会为每个回调再包装一层；
+// 2、源 Future 已经完成时同步完成，不注册回调；使用 direct() 把转换出来的 Future 再转换回去时直接返回调用者当初传进来的那个 Future，
+//    来回转换不会一层层地套下去；其它 CallbackPolicy 照常转换，保证回调在指定的 Executor 上执行；
+// 3、取消是双向的：取消转换出来的 Future 会取消源 Future，源 Future 被取消时转换出来的 Future 也被取消；
+// 4、CallbackPolicy 决定源 Future 完成之后在哪个线程上完成转换出来的 Future（ 也就是在哪个线程上执行它的 direct 回调 ）：
+//    direct() 在完成源 Future 的线程上执行，没有线程切换；boundedPool() 使用有界的线程池，队列满了退化成在完成源 Future 的线程上执行；
+//    executor() 使用调用者自己的 Executor。boundedPool() 每次调用都会创建一个新的线程池，应该创建一次反复使用，不用了调用 close() 关闭。
+// 以前那种 supplyAsync(() -> listenableFuture.get()) 的写法每一级都要占用一个线程阻塞等待，再多一次线程切换。
+public final class FutureBridge {
+
+    private FutureBridge() {
+    }
+
+    public static <V> CompletableFuture<V> toCompletableFuture(ListenableFuture<V> future) {
+        return toCompletableFuture(future, CallbackPolicy.direct());
+    }
+
+    public static <V> CompletableFuture<V> toCompletableFuture(ListenableFuture<V> future, CallbackPolicy policy) {
+        Objects.requireNonNull(future, "future");
+        Objects.requireNonNull(policy, "policy");
+        // 只有 direct() 才能直接返回原来的 Future，其它 policy 要求回调在指定的 Executor 上执行
+        if (future instanceof CompletableToListenable && policy == CallbackPolicy.DIRECT) {
+            return ((CompletableToListenable<V>) future).source;
+        }
+        ListenableToCompletable<V> result = new ListenableToCompletable<>(future);
+        if (future.isDone()) {
+            result.run();
+        } else {
+            future.addListener(result, policy.executor);
+        }
+        return result;
+    }
+
+    public static <V> ListenableFuture<V> toListenableFuture(CompletableFuture<V> future) {
+        return toListenableFuture(future, CallbackPolicy.direct());
+    }
+
+    public static <V> ListenableFuture<V> toListenableFuture(CompletableFuture<V> future, CallbackPolicy policy) {
+        Objects.requireNonNull(future, "future");
+        Objects.requireNonNull(policy, "policy");
+        if (future instanceof ListenableToCompletable && policy == CallbackPolicy.DIRECT) {
+            return ((ListenableToCompletable<V>) future).source;
+        }
+        CompletableToListenable<V> result = new CompletableToListenable<>(future);
+        if (future.isDone() || policy.executor == MoreExecutors.directExecutor()) {
+            future.whenComplete(result);
+        } else {
+            future.whenCompleteAsync(result, policy.executor);
+        }
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    // 转换出来的 Future 在哪里完成；close() 只关闭 boundedPool() 自己创建的线程池，不会关闭调用者的 Executor
+    public static final class CallbackPolicy implements AutoCloseable {
+
+        private static final CallbackPolicy DIRECT = new CallbackPolicy(MoreExecutors.directExecutor(), "direct", null);
+
+        private final Executor executor;
+
+        private final String name;
+
+        // boundedPool() 创建的线程池，其它 policy 为 null
+        private final ExecutorService ownedPool;
+
+        private CallbackPolicy(Executor executor, String name, ExecutorService ownedPool) {
+            this.executor = executor;
+            this.name = name;
+            this.ownedPool = ownedPool;
+        }
+
+        // 在完成源 Future 的线程上完成，回调必须很短，不能阻塞
+        public static CallbackPolicy direct() {
+            return DIRECT;
+        }
+
+        // threads 个守护线程、最多排队 queueCapacity 个回调的线程池；队列满了或者关闭之后由完成源 Future 的线程自己执行，不会丢弃回调
+        // （ CallerRunsPolicy 在线程池关闭之后会直接丢弃任务，转换出来的 Future 就永远不会完成了 ）
+        public static CallbackPolicy boundedPool(int threads, int queueCapacity) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                                             new ArrayBlockingQueue<>(queueCapacity),
+                                                             new ThreadFactoryBuilder()
+                                                                     .setNameFormat("future-bridge-callback-%d")
+                                                                     .setDaemon(true)
+                                                                     .build(),
+                                                             (callback, rejectingPool) -> callback.run());
+            return new CallbackPolicy(pool, "boundedPool(" + threads + ", " + queueCapacity + ")", pool);
+        }
+
+        // 在调用者的 Executor 上完成，例如调用者的事件循环或者串行执行器
+        public static CallbackPolicy executor(Executor executor) {
+            Objects.requireNonNull(executor, "executor");
+            return executor == MoreExecutors.directExecutor() ? DIRECT : new CallbackPolicy(executor, "executor(" + executor + ")", null);
+        }
+
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        // 已经排队的回调照常执行，之后的回调在完成源 Future 的线程上执行
+        @Override
+        public void close() {
+            if (ownedPool != null) {
+                ownedPool.shutdown();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "CallbackPolicy." + name;
+        }
+    }
+
+    // ListenableFuture -> CompletableFuture，自己就是注册到源 Future 上的 listener
+    private static final class ListenableToCompletable<V> extends CompletableFuture<V> implements Runnable {
+
+        private final ListenableFuture<V> source;
+
+        ListenableToCompletable(ListenableFuture<V> source) {
+            this.source = source;
+        }
+
+        // 源 Future 已经完成，get() 不会阻塞
+        @Override
+        public void run() {
+            if (source.isCancelled()) {
+                super.cancel(false);
+                return;
+            }
+            try {
+                complete(source.get());
+            } catch (ExecutionException e) {
+                completeExceptionally(e.getCause() != null ? e.getCause() : e);
+            } catch (InterruptedException e) {
+                // 源 Future 已经完成，不会发生；万一发生也要恢复中断标记
+                Thread.currentThread().interrupt();
+                completeExceptionally(e);
+            } catch (CancellationException e) {
+                super.cancel(false);
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                source.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+
+    // CompletableFuture -> ListenableFuture，自己就是传给源 Future 的 whenComplete() 的回调
+    private static final class CompletableToListenable<V> extends AbstractFuture<V> implements BiConsumer<V, Throwable> {
+
+        private final CompletableFuture<V> source;
+
+        CompletableToListenable(CompletableFuture<V> source) {
+            this.source = source;
+        }
+
+        @Override
+        public void accept(V value, Throwable error) {
+            if (error == null) {
+                set(value);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            if (cause instanceof CancellationException) {
+                super.cancel(false);
+            } else {
+                setException(cause);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                source.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+}
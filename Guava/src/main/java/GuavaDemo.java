@@ -62,5 +62,25 @@ public class GuavaDemo {
 
         String greeting = String.join("", Futures.allAsList(future1, future2).get());
         System.out.println("简单教程".equals(greeting));
+
+        // 四、ListenableFuture 和 CompletableFuture 互相转换
+        // 其它模块使用的是 JDK 的 CompletableFuture，两种 Future 混用时需要互相转换。
+        // 常见的临时写法是 CompletableFuture.supplyAsync(() -> listenableFuture.get())，每次转换都要占用一个线程阻塞等待，还多一次线程切换。
+        // FutureBridge 把转换出来的 Future 直接注册成源 Future 的回调，默认在完成源 Future 的线程上完成，没有额外的线程，取消也是双向的。
+        // 见 class FutureBridge
+        CompletableFuture<String> completableGreeting = FutureBridge.toCompletableFuture(future1)
+                .thenCombine(FutureBridge.toCompletableFuture(future2), String::concat);
+        System.out.println("简单教程".equals(completableGreeting.get()));
+        ListenableFuture<String> listenableGreeting = FutureBridge.toListenableFuture(
+                CompletableFuture.supplyAsync(() -> "简单教程", executorService));
+        System.out.println("简单教程".equals(listenableGreeting.get()));
+        // 取消 CompletableFuture 时，底层的 ListenableFuture 也被取消
+        ListenableFuture<String> slow = listeningExecutorService.submit(() -> {
+            Thread.sleep(10_000);
+            return "慢";
+        });
+        FutureBridge.toCompletableFuture(slow).cancel(true);
+        System.out.println(slow.isCancelled()); // true
+        executorService.shutdownNow();
     }
 }
@@ -2,7 +2,9 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.*;
+import java.util.function.Function;
 
 public class LockDemo {
     public static void main(String[] args) {
@@ -62,10 +64,18 @@ public class LockDemo {
 
         // 我们写一个范例演示下如何使用 ReadWriteLock
         // 见 class SynchronizedHashMapWithReadWriteLock
+        // SynchronizedHashMapWithReadWriteLock 用一把读写锁保护整张表，任何一次 put() / remove() 都会阻塞所有读线程，读多写少时也只能用上几个核。
+        // 改进的思路是锁分段 ( lock striping )：把表拆成 N 个各自加锁、各自扩容的段 ( segment )，写操作只锁住 key 所在的段；
+        // 段内再用 StampedLock 的乐观读，读操作不加任何锁，只在读完之后校验戳记，校验失败才退化为读锁。
+        // 见 class StripedHashMap
 
         // 3、StampedLock
         // StampedLock 是 Java 8 中引入的。它支持读写锁定。
         // 不同的是，锁的获取方法返回的戳记 （ stamp ） 可以用于释放锁定或检查锁定是否仍然有效。
+        // 乐观读的正确用法是：先 tryOptimisticRead() 拿到戳记，再读共享数据，最后 validate() 校验戳记，校验通过才能使用读到的值，否则退化为读锁重读。
+        // 见 String readWithOptimisticLock(String key)
+        // 读多写少的缓存还需要知道乐观读的命中率，以及 computeIfAbsent 这类 「 先读后写 」 的操作如何用 tryConvertToWriteLock() 升级为写锁。
+        // 见 class OptimisticStampedMap
 
         // 4、Condition
         // Condition 类让线程能够在执行临界区时等待某些条件发生。当线程获得对临界区的访问但没有执行其操作的必要条件时，可能会发生这种情况。
@@ -140,6 +150,8 @@ class StampedLockDemo {
 
     public String readWithOptimisticLock(String key) {
         long stamp = lock.tryOptimisticRead();
+        String value = map.get(key);
+        // 必须在读之后校验，校验通过说明读的过程中没有写操作
         if (!lock.validate(stamp)) {
             stamp = lock.readLock();
             try {
@@ -148,7 +160,7 @@ class StampedLockDemo {
                 lock.unlock(stamp);
             }
         }
-        return map.get(key);
+        return value;
     }
 }
 
@@ -197,6 +209,380 @@ class SynchronizedHashMapWithReadWriteLock {
 
 }
 
+// 锁分段的并发哈希表，对外保持 SynchronizedHashMapWithReadWriteLock 的 put / get / remove / containsKey 接口
+// 每个段是一个独立加锁、独立扩容的 OptimisticStampedMap，写操作只锁住 key 所在的段，读操作走段内的乐观读
+class StripedHashMap<K, V> {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+
+    private final OptimisticStampedMap<K, V>[] segments;
+
+    private final int segmentShift;
+
+    public StripedHashMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public StripedHashMap(int concurrencyLevel) {
+        if (concurrencyLevel <= 0 || concurrencyLevel > (1 << 16)) {
+            throw new IllegalArgumentException("concurrencyLevel must be between 1 and 65536: " + concurrencyLevel);
+        }
+        // 段数向上取整为 2 的幂，用 hash 的高位选段，低位选桶
+        int size = concurrencyLevel == 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        this.segments = (OptimisticStampedMap<K, V>[]) new OptimisticStampedMap<?, ?>[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new OptimisticStampedMap<>(DEFAULT_SEGMENT_CAPACITY, OptimisticStampedMap.DEFAULT_OPTIMISTIC_RETRIES);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(size);
+    }
+
+    public V put(K key, V value) {
+        int hash = OptimisticStampedMap.spread(key.hashCode());
+        return segmentFor(hash).put(hash, key, value);
+    }
+
+    public V remove(K key) {
+        int hash = OptimisticStampedMap.spread(key.hashCode());
+        return segmentFor(hash).remove(hash, key);
+    }
+
+    public V get(K key) {
+        int hash = OptimisticStampedMap.spread(key.hashCode());
+        return segmentFor(hash).get(hash, key);
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        int hash = OptimisticStampedMap.spread(key.hashCode());
+        return segmentFor(hash).computeIfAbsent(hash, key, mappingFunction);
+    }
+
+    public int size() {
+        long sum = 0;
+        for (OptimisticStampedMap<K, V> segment : segments) {
+            sum += segment.size();
+        }
+        return (int) Math.min(sum, Integer.MAX_VALUE);
+    }
+
+    private OptimisticStampedMap<K, V> segmentFor(int hash) {
+        // 只有一个段时 segmentShift 为 32，Java 的移位会对 32 取模，需要单独处理
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+}
+
+// StampedLock 保护的哈希表，面向读多写少的缓存
+// - get：乐观读，读完之后 validate()，失败最多重试 maxOptimisticRetries 次，之后退化为读锁
+// - computeIfAbsent：先乐观读，校验通过并且不存在时用 tryConvertToWriteLock() 把这次乐观读的戳记直接升级为写锁，升级失败才重新获取写锁
+// - 统计乐观读成功、乐观读失败、退化为读锁、升级成功、升级失败的次数，用于观察命中率
+// 链表节点的 hash / key / next 都是 final 的，扩容时先构建新表再替换引用，乐观读在写线程修改期间只会看到一条完整的旧链或新链，
+// 不会像直接乐观读 HashMap 那样可能遇到结构不一致的桶
+class OptimisticStampedMap<K, V> {
+
+    static final int DEFAULT_OPTIMISTIC_RETRIES = 3;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final int maxOptimisticRetries;
+
+    private Node<K, V>[] table;
+
+    private int count;
+
+    private int threshold;
+
+    private final LongAdder optimisticSuccess = new LongAdder();
+
+    private final LongAdder optimisticFailure = new LongAdder();
+
+    private final LongAdder readLockFallback = new LongAdder();
+
+    private final LongAdder upgradeSuccess = new LongAdder();
+
+    private final LongAdder upgradeFailure = new LongAdder();
+
+    public OptimisticStampedMap() {
+        this(DEFAULT_CAPACITY, DEFAULT_OPTIMISTIC_RETRIES);
+    }
+
+    @SuppressWarnings("unchecked")
+    public OptimisticStampedMap(int initialCapacity, int maxOptimisticRetries) {
+        if (initialCapacity <= 0 || initialCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("initialCapacity must be between 1 and 2^30: " + initialCapacity);
+        }
+        if (maxOptimisticRetries < 0) {
+            throw new IllegalArgumentException("maxOptimisticRetries must not be negative: " + maxOptimisticRetries);
+        }
+        int capacity = initialCapacity == 1 ? 1 : Integer.highestOneBit(initialCapacity - 1) << 1;
+        this.table = (Node<K, V>[]) new Node<?, ?>[capacity];
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.maxOptimisticRetries = maxOptimisticRetries;
+    }
+
+    public V get(K key) {
+        return get(spread(key.hashCode()), key);
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    public V put(K key, V value) {
+        return put(spread(key.hashCode()), key, value);
+    }
+
+    public V remove(K key) {
+        return remove(spread(key.hashCode()), key);
+    }
+
+    // mappingFunction 在写锁内执行，应当短小并且不能访问本 map
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return computeIfAbsent(spread(key.hashCode()), key, mappingFunction);
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int c = count;
+        if (lock.validate(stamp)) {
+            return c;
+        }
+        stamp = lock.readLock();
+        try {
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    V get(int hash, K key) {
+        for (int i = 0; i <= maxOptimisticRetries; i++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0L) {
+                // 写锁被持有，这一次乐观读必然失败
+                optimisticFailure.increment();
+                continue;
+            }
+            V value = find(table, hash, key);
+            // 先读后校验：读期间没有写操作，读到的值才是一致的
+            if (lock.validate(stamp)) {
+                optimisticSuccess.increment();
+                return value;
+            }
+            optimisticFailure.increment();
+        }
+        readLockFallback.increment();
+        long stamp = lock.readLock();
+        try {
+            return find(table, hash, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    V put(int hash, K key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        long stamp = lock.writeLock();
+        try {
+            return putLocked(hash, key, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    V remove(int hash, K key) {
+        long stamp = lock.writeLock();
+        try {
+            Node<K, V>[] tab = table;
+            int index = hash & (tab.length - 1);
+            Node<K, V> first = tab[index];
+            Node<K, V> e = first;
+            while (e != null && !(e.hash == hash && key.equals(e.key))) {
+                e = e.next;
+            }
+            if (e == null) {
+                return null;
+            }
+            // next 是 final 的，被删节点之前的节点需要复制一份接到被删节点的后继上
+            Node<K, V> newFirst = e.next;
+            for (Node<K, V> p = first; p != e; p = p.next) {
+                newFirst = new Node<>(p.hash, p.key, p.value, newFirst);
+            }
+            tab[index] = newFirst;
+            count--;
+            return e.value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    V computeIfAbsent(int hash, K key, Function<? super K, ? extends V> mappingFunction) {
+        // 查找和升级必须用同一个戳记：只有查找时的戳记没有被写操作作废，「 不存在 」 这个结论才仍然成立。
+        // 和 get() 一样最多乐观读 maxOptimisticRetries + 1 次，每次逻辑读只记一次乐观读成功或者一次回退
+        long stamp = 0L;
+        boolean validated = false;
+        for (int i = 0; i <= maxOptimisticRetries && !validated; i++) {
+            long optimistic = lock.tryOptimisticRead();
+            if (optimistic == 0L) {
+                optimisticFailure.increment();
+                continue;
+            }
+            V found = find(table, hash, key);
+            if (!lock.validate(optimistic)) {
+                optimisticFailure.increment();
+                continue;
+            }
+            validated = true;
+            optimisticSuccess.increment();
+            if (found != null) {
+                return found;
+            }
+            stamp = lock.tryConvertToWriteLock(optimistic);
+            if (stamp != 0L) {
+                upgradeSuccess.increment();
+            } else {
+                upgradeFailure.increment();
+            }
+        }
+        if (!validated) {
+            // 乐观读一直失败，和 get() 一样记一次回退，不过直接在写锁下查找，省掉一次先读锁后写锁
+            readLockFallback.increment();
+        }
+        if (stamp == 0L) {
+            stamp = lock.writeLock();
+        }
+        try {
+            // 拿到写锁之前可能有其它线程已经放入了值
+            V value = find(table, hash, key);
+            if (value != null) {
+                return value;
+            }
+            value = mappingFunction.apply(key);
+            if (value != null) {
+                putLocked(hash, key, value);
+            }
+            return value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long getOptimisticSuccessCount() {
+        return optimisticSuccess.sum();
+    }
+
+    public long getOptimisticFailureCount() {
+        return optimisticFailure.sum();
+    }
+
+    public long getReadLockFallbackCount() {
+        return readLockFallback.sum();
+    }
+
+    public long getUpgradeSuccessCount() {
+        return upgradeSuccess.sum();
+    }
+
+    public long getUpgradeFailureCount() {
+        return upgradeFailure.sum();
+    }
+
+    // 不需要加锁就完成的读操作占全部读操作的比例
+    public double getOptimisticHitRate() {
+        long success = optimisticSuccess.sum();
+        long total = success + readLockFallback.sum();
+        return total == 0 ? 1.0 : (double) success / total;
+    }
+
+    @Override
+    public String toString() {
+        return "OptimisticStampedMap{size=" + size()
+                + ", optimisticSuccess=" + getOptimisticSuccessCount()
+                + ", optimisticFailure=" + getOptimisticFailureCount()
+                + ", readLockFallback=" + getReadLockFallbackCount()
+                + ", upgradeSuccess=" + getUpgradeSuccessCount()
+                + ", upgradeFailure=" + getUpgradeFailureCount() + "}";
+    }
+
+    // 乘以黄金分割常数把低位的差异扩散到高位，StripedHashMap 用高位选段，低位选桶
+    static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // 持有写锁时调用
+    private V putLocked(int hash, K key, V value) {
+        Node<K, V>[] tab = table;
+        int index = hash & (tab.length - 1);
+        for (Node<K, V> e = tab[index]; e != null; e = e.next) {
+            if (e.hash == hash && key.equals(e.key)) {
+                V old = e.value;
+                e.value = value;
+                return old;
+            }
+        }
+        tab[index] = new Node<>(hash, key, value, tab[index]);
+        if (++count > threshold) {
+            resize();
+        }
+        return null;
+    }
+
+    // 持有写锁时调用；新表构建完成后才替换引用，乐观读要么看到旧表要么看到新表
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        Node<K, V>[] oldTab = table;
+        int newCapacity = oldTab.length << 1;
+        if (newCapacity <= 0) {
+            return;
+        }
+        Node<K, V>[] newTab = (Node<K, V>[]) new Node<?, ?>[newCapacity];
+        for (Node<K, V> head : oldTab) {
+            for (Node<K, V> e = head; e != null; e = e.next) {
+                int index = e.hash & (newCapacity - 1);
+                newTab[index] = new Node<>(e.hash, e.key, e.value, newTab[index]);
+            }
+        }
+        table = newTab;
+        threshold = (int) (newCapacity * LOAD_FACTOR);
+    }
+
+    private static <K, V> V find(Node<K, V>[] tab, int hash, K key) {
+        for (Node<K, V> e = tab[hash & (tab.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && key.equals(e.key)) {
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    static final class Node<K, V> {
+        final int hash;
+        final K key;
+        // 只在写锁内修改，乐观读读到的旧值会被 validate() 拦下
+        V value;
+        final Node<K, V> next;
+
+        Node(int hash, K key, V value, Node<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+    }
+}
+
 class SharedObject {
     ReentrantLock lock = new ReentrantLock();
     int counter = 0;
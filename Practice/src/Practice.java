@@ -2,6 +2,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Practice {
     public static void main(String[] args) {
@@ -140,6 +146,30 @@ public class Practice {
         // 拥有对象监视器的线程（ 例如，已进入由对象保护的同步部分的线程 ）可以调用 object.wait() 来临时释放监视器并为其他线程提供获取监视器的机会。例如，这可以在等待某个条件的情况下完成。
         // 当另一个获取监视器的线程满足条件时，它可以调用 object.notify() 或 object.notifyAll() 并释放监视器。notify() 方法唤醒处于等待状态的单个线程，notifyAll() 方法唤醒等待此监视器的所有线程，并且它们都竞争重新获取锁定。
         // 下面的BlockingQueue 实现演示了多个线程如何通过 wait-notify 模式一起工作。如果我们将一个元素放入一个空队列，那么在 take() 方法中等待的所有线程都会唤醒并尝试接收该值。如果我们将一个元素放入一个已经满了的队列，put() 方法将等待对 get() 方法的调用。get() 方法删除一个元素，并通知在 put() 方法中等待队列对新项目有空位置的线程。
+        // CustomBlockingQueue 每次 put 都要分配一个链表节点，每次交接都会 notifyAll() 唤醒所有等待者，高并发下吞吐量很低。
+        // MpmcRingBuffer 是基于数组的无锁有界多生产者多消费者队列：容量为 2 的幂，每个槽位带一个序号，head / tail 计数器做了缓存行填充，
+        // 热路径上没有任何对象分配，并且可以选择阻塞 ( BLOCKING )、自旋 ( SPINNING )、挂起 ( PARKING ) 三种等待策略。
+        MpmcRingBuffer<Integer> ringBuffer = new MpmcRingBuffer<>(1024, MpmcRingBuffer.WaitStrategy.PARKING);
+        Thread ringProducer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10; i++) {
+                    ringBuffer.put(i);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread ringConsumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10; i++) {
+                    System.out.println("ring buffer take: " + ringBuffer.take());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ringProducer.start();
+        ringConsumer.start();
 
 
         // Q16: 描述死锁，存活锁和饥饿的条件。描述这些情况的可能原因 ?
@@ -285,3 +315,255 @@ class CustomBlockingQueue<T> {
         return queue.remove(0);
     }
 }
+
+
+// 缓存行填充的计数器：value 后面补 7 个 long，避免 head 和 tail 落在同一个缓存行上产生伪共享
+class PaddedAtomicLong extends AtomicLong {
+
+    private static final long serialVersionUID = 1L;
+
+    // JIT 不会删除对象的字段，这些填充字段不需要被读取
+    long p1, p2, p3, p4, p5, p6, p7;
+
+    public PaddedAtomicLong(long initialValue) {
+        super(initialValue);
+    }
+}
+
+// 无锁有界 MPMC 环形队列（ Dmitry Vyukov 的 bounded MPMC queue 算法 ）
+// 每个槽位有一个序号 sequence：
+// sequence == pos       表示槽位空闲，生产者可以在 pos 位置写入
+// sequence == pos + 1   表示槽位已发布，消费者可以在 pos 位置读取
+// 消费者读走元素后把 sequence 设置为 pos + capacity，留给下一圈的生产者
+class MpmcRingBuffer<T> {
+
+    enum WaitStrategy {
+        // 队列满 / 空时用 ReentrantLock + Condition 阻塞，只有存在等待者时才加锁唤醒，而且每次只唤醒一个
+        BLOCKING,
+        // 忙等，自旋一段时间后让出 CPU，延迟最低，但会占满 CPU
+        SPINNING,
+        // 自旋一段时间后 LockSupport.parkNanos() 短暂挂起，挂起时间逐步加长
+        PARKING
+    }
+
+    private static final int SPIN_TRIES = 100;
+
+    private static final int YIELD_TRIES = 100;
+
+    private static final long MAX_PARK_NANOS = 1_000_000L;
+
+    private final Object[] buffer;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final WaitStrategy waitStrategy;
+
+    // 下一个可写位置
+    private final PaddedAtomicLong tail = new PaddedAtomicLong(0);
+
+    // 下一个可读位置
+    private final PaddedAtomicLong head = new PaddedAtomicLong(0);
+
+    // 以下只在 BLOCKING 策略下使用
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final AtomicInteger takeWaiters = new AtomicInteger();
+
+    private final AtomicInteger putWaiters = new AtomicInteger();
+
+    public MpmcRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 2 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 2 and 2^30: " + capacity);
+        }
+        if (waitStrategy == null) {
+            throw new NullPointerException("waitStrategy");
+        }
+        // 向上取整为 2 的幂，用位与代替取模
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.lazySet(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public MpmcRingBuffer(int capacity) {
+        this(capacity, WaitStrategy.BLOCKING);
+    }
+
+    // 非阻塞入队，队列满时返回 false
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        for (; ; ) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = item;
+                    // volatile 写发布元素，同时保证和等待者计数之间的可见性（ 见 signalTakers ）
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // 槽位还没被上一圈的消费者读走，队列已满
+                return false;
+            } else {
+                // 被别的生产者抢先了
+                pos = tail.get();
+            }
+        }
+    }
+
+    // 非阻塞出队，队列空时返回 null
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long pos = head.get();
+        for (; ; ) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T item = (T) buffer[index];
+                    buffer[index] = null;
+                    sequences.set(index, pos + mask + 1);
+                    return item;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                // 槽位还没被发布，队列为空
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    public void put(T item) throws InterruptedException {
+        int idle = 0;
+        while (!offer(item)) {
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                awaitNotFull();
+            } else {
+                idle = idle(idle);
+            }
+        }
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            signalTakers();
+        }
+    }
+
+    public T take() throws InterruptedException {
+        int idle = 0;
+        T item;
+        while ((item = poll()) == null) {
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                awaitNotEmpty();
+            } else {
+                idle = idle(idle);
+            }
+        }
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            signalPutters();
+        }
+        return item;
+    }
+
+    public int size() {
+        // 先读 head 再读 tail，保证结果不为负
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.min(Math.max(t - h, 0), capacity());
+    }
+
+    public boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) pos & mask) != pos + 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    private boolean isFull() {
+        long pos = tail.get();
+        return sequences.get((int) pos & mask) != pos;
+    }
+
+    // SPINNING / PARKING 的退避，返回递增后的空转次数
+    private int idle(int idle) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (idle < SPIN_TRIES) {
+            // 纯自旋
+        } else if (idle < SPIN_TRIES + YIELD_TRIES || waitStrategy == WaitStrategy.SPINNING) {
+            Thread.yield();
+        } else {
+            int shift = Math.min(idle - SPIN_TRIES - YIELD_TRIES, 20);
+            LockSupport.parkNanos(Math.min(1L << shift, MAX_PARK_NANOS));
+        }
+        return idle == Integer.MAX_VALUE ? idle : idle + 1;
+    }
+
+    // 先登记为等待者，再在锁内重新检查条件，和 signalTakers() 里“先发布、再读等待者计数”的顺序配合，不会丢失唤醒
+    private void awaitNotEmpty() throws InterruptedException {
+        lock.lockInterruptibly();
+        takeWaiters.incrementAndGet();
+        try {
+            while (isEmpty()) {
+                notEmpty.await();
+            }
+        } finally {
+            takeWaiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    private void awaitNotFull() throws InterruptedException {
+        lock.lockInterruptibly();
+        putWaiters.incrementAndGet();
+        try {
+            while (isFull()) {
+                notFull.await();
+            }
+        } finally {
+            putWaiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    // 没有等待者时只是一次 volatile 读，不加锁
+    private void signalTakers() {
+        if (takeWaiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void signalPutters() {
+        if (putWaiters.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,8 +1,17 @@
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public class SemaphoreDemo {
     // Semaphore，现在普遍翻译为“信号量”，以前也曾被翻译成“信号灯”，因为类似现实生活里的红绿灯，车辆能不能通行，要看是不是绿灯。同样，在编程世界里，线程能不能执行，也要看信号量是不是允许。
@@ -68,6 +77,72 @@ public class SemaphoreDemo {
 
     // 简言之，使用信号量，我们可以轻松地实现一个限流器，使用起来还是非常简单的。
 
+    // 不过 ObjPool 每次 exec() 都要先 acquire() 信号量，再在 Vector 上同步地 remove(0)（ 数组整体前移，O(n) ），几百个线程共用一个池子时，这里就成了热点。
+    // 高性能的对象池一般这样做（ 参考 HikariCP 的 ConcurrentBag ）：
+    // 1、 每个线程缓存自己最近归还的对象，下次借用时先从这里拿，通常不和其它线程竞争；
+    // 2、 所有对象都登记在一个共享列表里，每个对象有一个原子状态，线程本地缓存没有命中时扫描共享列表，用 CAS 抢占空闲对象，不加锁；
+    // 3、 只有池子真的耗尽时，借用线程才在信号量上阻塞，归还对象时如果有人在等才 release()；
+    // 4、 可选的工厂、校验和空闲回收回调。
+    // 见 class FastObjPool
+
+    // 五、自己实现一个信号量
+    // 信号量模型 「 一个计数器，一个等待队列，三个方法 」 可以不依赖 AQS 直接实现：
+    // - 计数器是一个 AtomicInteger，没有竞争时 acquire() / release() 只是一次 CAS；
+    // - 等待队列是一个侵入式的 FIFO 链表，节点里直接保存等待的线程和它要的许可数，线程用 LockSupport.park() 挂起；
+    // - 公平模式下有人排队时新来的线程不能插队，非公平 ( barging ) 模式下新来的线程可以直接 CAS 抢许可；
+    // - 支持一次申请 / 释放多个许可和超时申请。
+    // 见 class MySemaphore，以及和 java.util.concurrent.Semaphore 的对比 benchmark()
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        for (int permits : new int[]{1, 4}) {
+            Semaphore jdk = new Semaphore(permits);
+            MySemaphore mine = new MySemaphore(permits);
+            long jdkOps = benchmark(threads, 200_000, () -> {
+                jdk.acquire();
+                jdk.release();
+            });
+            long myOps = benchmark(threads, 200_000, () -> {
+                mine.acquire();
+                mine.release();
+            });
+            System.out.printf("permits=%d threads=%d Semaphore: %d ops/s, MySemaphore: %d ops/s%n", permits, threads, jdkOps, myOps);
+        }
+    }
+
+    interface Op {
+        void run() throws InterruptedException;
+    }
+
+    // 每个线程执行 iterations 次 op，返回每秒完成的 op 数
+    static long benchmark(int threads, int iterations, Op op) throws InterruptedException {
+        // 预热
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        List<Thread> workers = new ArrayList<>();
+        AtomicLong done = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < iterations; i++) {
+                        op.run();
+                    }
+                    done.addAndGet(iterations);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return done.get() * 1_000_000_000L / Math.max(1, System.nanoTime() - start);
+    }
+
     // 四、总结
     // Java 在并发编程领域走的很快，重点支持的还是管程模型。 管程模型理论上解决了信号量模型的一些不足，主要体现在易用性和工程化方面，
     // 例如用信号量解决我们曾经提到过的阻塞队列问题，就比管程模型麻烦很多。
@@ -110,30 +185,488 @@ class ObjPool<T, R> {
     }
 }
 
+// 高性能对象池：线程本地缓存 + 无锁共享列表 + 耗尽时才使用的信号量
+// 对象的状态只通过 CAS 改变，线程本地缓存里只是对共享条目的引用，别的线程扫描共享列表时照样可以抢走，所以对象不会被某个线程 「 私藏 」
+// borrow() 返回的是对象所在的条目，release() 直接归还这个条目，不需要在共享列表里按对象查找
+class FastObjPool<T> {
+
+    private static final int FREE = 0;
+
+    private static final int IN_USE = 1;
+
+    private static final int REMOVED = -1;
+
+    // 每个线程最多缓存的条目数
+    private static final int LOCAL_CACHE_SIZE = 16;
+
+    private final int maxSize;
+
+    private final Supplier<T> factory;
+
+    private final Predicate<T> validator;
+
+    private final Consumer<T> destroyer;
+
+    private final long maxIdleNanos;
+
+    // 只在创建和回收对象时修改，借用和归还都只是读
+    private final CopyOnWriteArrayList<Entry<T>> entries = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<List<Entry<T>>> localCache = ThreadLocal.withInitial(() -> new ArrayList<>(LOCAL_CACHE_SIZE));
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    // 只用来挂起等待者，许可数就是 「 有人在等时被归还的对象数 」
+    private final Semaphore available = new Semaphore(0);
+
+    public FastObjPool(int maxSize, Supplier<T> factory) {
+        this(maxSize, factory, null, null, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // validator 借出前校验对象，返回 false 的对象会被销毁；destroyer 在对象被丢弃时调用；maxIdle 大于 0 时 evictIdle() 回收空闲超过 maxIdle 的对象
+    public FastObjPool(int maxSize, Supplier<T> factory, Predicate<T> validator, Consumer<T> destroyer, long maxIdle, TimeUnit unit) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        if (factory == null) {
+            throw new NullPointerException("factory");
+        }
+        this.maxSize = maxSize;
+        this.factory = factory;
+        this.validator = validator;
+        this.destroyer = destroyer;
+        this.maxIdleNanos = unit.toNanos(maxIdle);
+    }
+
+    // 利用对象池的对象，调用 func
+    public <R> R exec(Function<T, R> func) throws InterruptedException {
+        Entry<T> entry = borrowEntry(-1L);
+        try {
+            return func.apply(entry.object);
+        } finally {
+            releaseEntry(entry);
+        }
+    }
+
+    // 超时返回 null，借到的条目必须用 release() 归还，对象用 entry.get() 取
+    public Entry<T> borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        return borrowEntry(unit.toNanos(timeout));
+    }
+
+    public void release(Entry<T> entry) {
+        if (entry.pool != this) {
+            throw new IllegalArgumentException("entry does not belong to this pool");
+        }
+        releaseEntry(entry);
+    }
+
+    // 回收空闲超过 maxIdle 的对象，返回回收的个数，一般由定时任务调用
+    public int evictIdle() {
+        if (maxIdleNanos <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Entry<T> entry : entries) {
+            if (now - entry.lastReleased > maxIdleNanos && entry.state.compareAndSet(FREE, REMOVED)) {
+                discard(entry);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int idle() {
+        int idle = 0;
+        for (Entry<T> entry : entries) {
+            if (entry.state.get() == FREE) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    // timeoutNanos < 0 表示一直等
+    private Entry<T> borrowEntry(long timeoutNanos) throws InterruptedException {
+        // 1、 线程本地缓存，从最近归还的开始
+        List<Entry<T>> local = localCache.get();
+        for (int i = local.size() - 1; i >= 0; i--) {
+            Entry<T> entry = local.remove(i);
+            // 已经被回收或者销毁的条目直接丢掉
+            if (entry.state.get() == FREE && entry.state.compareAndSet(FREE, IN_USE) && validate(entry)) {
+                return entry;
+            }
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (; ; ) {
+            // 2、 共享列表，CAS 抢占空闲对象
+            Entry<T> entry = scan();
+            if (entry != null) {
+                return entry;
+            }
+            // 3、 还没到上限就新建
+            entry = tryCreate();
+            if (entry != null) {
+                return entry;
+            }
+            // 4、 真的耗尽了，登记为等待者后再扫描一次，和 releaseEntry() 「 先置为空闲、再读等待者 」 配合，不会丢失唤醒
+            waiters.incrementAndGet();
+            try {
+                entry = scan();
+                if (entry != null) {
+                    return entry;
+                }
+                if (timeoutNanos < 0) {
+                    available.acquire();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !available.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                        return null;
+                    }
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+    }
+
+    private void releaseEntry(Entry<T> entry) {
+        entry.lastReleased = System.nanoTime();
+        if (!entry.state.compareAndSet(IN_USE, FREE)) {
+            throw new IllegalStateException("object was not borrowed");
+        }
+        if (waiters.get() > 0) {
+            available.release();
+        }
+        List<Entry<T>> local = localCache.get();
+        // 别的线程回收或者销毁的条目还留在这个线程的缓存里，顺便清掉，不让它们一直占着缓存的位置
+        for (int i = local.size() - 1; i >= 0; i--) {
+            if (local.get(i).state.get() == REMOVED) {
+                local.remove(i);
+            }
+        }
+        if (local.size() >= LOCAL_CACHE_SIZE) {
+            local.remove(0);
+        }
+        local.add(entry);
+    }
+
+    private Entry<T> scan() {
+        for (Entry<T> entry : entries) {
+            if (entry.state.get() == FREE && entry.state.compareAndSet(FREE, IN_USE) && validate(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry<T> tryCreate() {
+        for (; ; ) {
+            int current = size.get();
+            if (current >= maxSize) {
+                return null;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        try {
+            Entry<T> entry = new Entry<>(this, factory.get());
+            entry.state.set(IN_USE);
+            entries.add(entry);
+            return entry;
+        } catch (RuntimeException | Error e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    // 调用时 entry 已经是 IN_USE 状态，校验失败（ 包括 validator 抛出异常 ）就销毁并返回 false，否则这个条目会一直处于 IN_USE 状态
+    private boolean validate(Entry<T> entry) {
+        boolean valid;
+        try {
+            valid = validator == null || validator.test(entry.object);
+        } catch (RuntimeException e) {
+            valid = false;
+        }
+        if (valid) {
+            return true;
+        }
+        entry.state.set(REMOVED);
+        discard(entry);
+        return false;
+    }
+
+    private void discard(Entry<T> entry) {
+        entries.remove(entry);
+        size.decrementAndGet();
+        // 腾出了一个名额，等待者可以去新建
+        if (waiters.get() > 0) {
+            available.release();
+        }
+        if (destroyer != null) {
+            destroyer.accept(entry.object);
+        }
+    }
+
+    // 池中的一个对象和它的状态
+    static final class Entry<T> {
+
+        private final FastObjPool<T> pool;
+
+        private final T object;
+
+        private final AtomicInteger state = new AtomicInteger(FREE);
+
+        private volatile long lastReleased = System.nanoTime();
+
+        Entry(FastObjPool<T> pool, T object) {
+            this.pool = pool;
+            this.object = object;
+        }
+
+        public T get() {
+            return object;
+        }
+    }
+}
+
+// 不依赖 AQS 的计数信号量
+// - permits：可用许可数，acquire / release 的快速路径只是一次 CAS
+// - 等待队列：侵入式 FIFO 链表，由一个很短的自旋锁保护，只在慢速路径上使用
+// - 释放许可后按 FIFO 顺序把许可直接 「 交给 」 队头的等待者（ 扣减 permits 后再唤醒 ），被唤醒的线程不需要再去竞争
 class MySemaphore {
     // 计数器
-    int count;
-    // 等待队列
-    Queue queue;
+    private final AtomicInteger permits;
+    // 公平模式下有人排队时新来的线程不能插队
+    private final boolean fair;
+    // 等待队列，head / tail 只在持有 queueLock 时修改
+    private final AtomicBoolean queueLock = new AtomicBoolean();
+    private volatile Node head;
+    private Node tail;
 
     // 初始化操作
     MySemaphore(int c) {
-        this.count = c;
+        this(c, false);
     }
 
-    void down() {
-        count--;
-        if (count < 0) {
-            // 将当前线程插入等待队列
-            // 阻塞当前线程
+    MySemaphore(int c, boolean fair) {
+        if (c < 0) {
+            throw new IllegalArgumentException("permits must not be negative: " + c);
         }
+        this.permits = new AtomicInteger(c);
+        this.fair = fair;
+    }
+
+    void down() throws InterruptedException {
+        acquire(1);
     }
 
     void up() {
-        count++;
-        if (count <= 0) {
-            // 移除等待队列中的某个线程 T
-            // 唤醒线程 T
+        release(1);
+    }
+
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    public void acquire(int n) throws InterruptedException {
+        checkPermits(n);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (!tryAcquire(n)) {
+            await(n, false, 0L);
+        }
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    // 不阻塞，公平模式下有人排队时直接失败
+    public boolean tryAcquire(int n) {
+        checkPermits(n);
+        if (fair && head != null) {
+            return false;
+        }
+        return casAcquire(n);
+    }
+
+    public boolean tryAcquire(int n, long timeout, TimeUnit unit) throws InterruptedException {
+        checkPermits(n);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return tryAcquire(n) || await(n, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public void release() {
+        release(1);
+    }
+
+    public void release(int n) {
+        checkPermits(n);
+        permits.addAndGet(n);
+        // 先加许可、再读 head；和 await() 里 「 先入队、再分发 」 配合，不会丢失唤醒
+        if (head != null) {
+            lockQueue();
+            try {
+                dispatch();
+            } finally {
+                unlockQueue();
+            }
+        }
+    }
+
+    public int availablePermits() {
+        return permits.get();
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    public boolean hasQueuedThreads() {
+        return head != null;
+    }
+
+    private boolean casAcquire(int n) {
+        for (; ; ) {
+            int available = permits.get();
+            if (available < n) {
+                return false;
+            }
+            if (permits.compareAndSet(available, available - n)) {
+                return true;
+            }
+        }
+    }
+
+    // 慢速路径：入队并挂起，拿到许可返回 true，超时返回 false
+    private boolean await(int n, boolean timed, long deadline) throws InterruptedException {
+        Node node = new Node(Thread.currentThread(), n);
+        lockQueue();
+        try {
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            // 入队之后再分发一次，可能正好轮到自己
+            dispatch();
+        } finally {
+            unlockQueue();
+        }
+        boolean interrupted = false;
+        while (!node.granted) {
+            if (Thread.interrupted()) {
+                interrupted = true;
+                break;
+            }
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (node.granted || !cancel(node)) {
+            // 取消前已经拿到了许可
+            if (interrupted) {
+                release(n);
+                throw new InterruptedException();
+            }
+            return true;
+        }
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+        return false;
+    }
+
+    // 持有 queueLock 时调用：按 FIFO 顺序把许可交给队头，队头拿不到时后面的也不分发，避免大请求被饿死
+    private void dispatch() {
+        Node node;
+        while ((node = head) != null && casAcquire(node.permits)) {
+            head = node.next;
+            if (head == null) {
+                tail = null;
+            }
+            node.next = null;
+            node.granted = true;
+            LockSupport.unpark(node.thread);
+        }
+    }
+
+    // 把超时或者被中断的节点移出队列，节点已经拿到许可时返回 false
+    private boolean cancel(Node node) {
+        lockQueue();
+        try {
+            if (node.granted) {
+                return false;
+            }
+            Node prev = null;
+            for (Node p = head; p != null; prev = p, p = p.next) {
+                if (p == node) {
+                    if (prev == null) {
+                        head = p.next;
+                    } else {
+                        prev.next = p.next;
+                    }
+                    if (tail == p) {
+                        tail = prev;
+                    }
+                    break;
+                }
+            }
+            // 被移除的可能是挡住后面节点的队头
+            dispatch();
+            return true;
+        } finally {
+            unlockQueue();
+        }
+    }
+
+    private void lockQueue() {
+        int spins = 0;
+        while (!queueLock.compareAndSet(false, true)) {
+            if (++spins > 64) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void unlockQueue() {
+        queueLock.set(false);
+    }
+
+    private static void checkPermits(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + n);
+        }
+    }
+
+    // 等待队列的节点，直接保存等待的线程和它要的许可数
+    private static final class Node {
+        final Thread thread;
+        final int permits;
+        Node next;
+        volatile boolean granted;
+
+        Node(Thread thread, int permits) {
+            this.thread = thread;
+            this.permits = permits;
         }
     }
 }
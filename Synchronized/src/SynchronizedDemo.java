@@ -1,5 +1,14 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SynchronizedDemo {
 
@@ -133,6 +142,13 @@ public class SynchronizedDemo {
     // 预防死锁主要是破坏三个条件中的一个，有了这个思路后，实现就简单了。但仍需注意的是，有时候预防死锁成本也是很高的。例如上面转账那个例子，我们破坏占用且等待条件的成本就比破坏循环等待条件的成本高，破坏占用且等待条件，我们也是锁了所有的账户，而且还是用了死循环 while(!actr.apply(this, target));方法，不过好在 apply() 这个方法基本不耗时。 在转账这个例子中，破坏循环等待条件就是成本最低的一个方案。
     // 所以我们在选择具体方案的时候，还需要评估一下操作成本，从中选择一个成本最低的方案。
 
+    // 上面几种转账方案要么串行（ Account.class ），要么忙等（ Allocator ），余额还是装箱的 Integer，只能用上一个核。
+    // 账户数量很大、转账频率很高时，可以把所有账户的余额放进一个 AtomicLongArray，按账户 id 下标访问：
+    // 1、 单账户的存取款用 CAS 完成，不加锁；
+    // 2、 两个账户之间的转账按序号从小到大锁定两个锁分段（ 同样是破坏循环等待条件 ），锁的数量固定，和账户数量无关；
+    // 3、 批量转账把落在同一对锁分段上的转账放在一次加锁里执行，每个账户上的转账仍然按数组顺序执行，结果和逐笔转账相同；
+    // 见 class AccountLedger
+
     // “等待-通知”机制优化循环等待
     // 如果apply() 操作耗时非常短，而且并发冲突量也不大时，这个方案还挺不错的，因为这种场景下，循环上几次或者几十次就能一次性获取转出账户和转入账户了。但是如果 apply() 操作耗时长，或者并发冲突量大的时候，循环等待这种方案就不适用了，因为在这种场景下，可能要循环上万次才能获取到锁，太消耗 CPU 了。
     // 其实在这种场景下，最好的方案应该是：如果线程要求的条件（转出账本和转入账本同在文件架上）不满足，则线程阻塞自己，进入等待状态；当线程要求的条件（转出账本和转入账本同在文件架上）满足后，通知等待的线程重新执行。其中，使用线程阻塞的方式就能避免循环等待消耗 CPU 的问题。
@@ -167,6 +183,12 @@ public class SynchronizedDemo {
 
     // 所以除非经过深思熟虑，否则尽量使用 notifyAll()。
 
+    // 不过 Allocator 只有一把锁，als.contains() 是 O(n) 的，notifyAll() 会唤醒所有等待者，而 transferAllocator() 更是一直在 while 循环里空转。
+    // 转账数量上千之后，空转会占满 CPU，而每次归还资源引发的 「 惊群 」 会主导延迟。
+    // 更好的做法是让每个资源有自己的等待队列：资源按对象身份 ( identityHashCode ) 散列到多个分段，每个分段一把锁；
+    // 申请不到时线程挂在被占用资源的等待队列上，归还资源时只唤醒等这个资源的线程，并且支持超时和等待时间统计。
+    // 见 class ShardedAllocator
+
     // 总结
     // 等待- 通知机制是一种非常普遍的线程间协作的方式。工作中经常看到有同学使用轮询的方式来等待某个状态，
     // 其实很多情况下都可以用今天我们介绍的等待 - 通知机制来优化。Java 语言内置的 synchronized 配合 wait()、notify()、notifyAll() 这三个方法可以快速实现这种机制，
@@ -214,6 +236,266 @@ class Allocator {
     }
 }
 
+// 分段的资源分配器，和 Allocator 一样一次性申请两个资源，破坏占用且等待条件
+// - 资源按 System.identityHashCode 散列到分段，每个分段用一把锁保护一个 IdentityHashMap，查找是 O(1) 的，只按对象身份比较
+// - 申请不到时，线程挂在被占用资源自己的等待队列上并 park，归还资源时只唤醒等这个资源的线程
+// - 支持超时，并用 WaitTimeHistogram 统计每次申请的等待时间
+class ShardedAllocator {
+
+    private static final int DEFAULT_SHARDS = 64;
+
+    private final Shard[] shards;
+
+    private final int shardMask;
+
+    private final WaitTimeHistogram waitTimes = new WaitTimeHistogram();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public ShardedAllocator() {
+        this(DEFAULT_SHARDS);
+    }
+
+    public ShardedAllocator(int shardCount) {
+        if (shardCount <= 0 || shardCount > (1 << 16)) {
+            throw new IllegalArgumentException("shardCount must be between 1 and 65536: " + shardCount);
+        }
+        int size = shardCount == 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard(i);
+        }
+        this.shardMask = size - 1;
+    }
+
+    // 一次性申请两个资源，超时返回 false
+    public boolean apply(Object from, Object to, long timeout, TimeUnit unit) throws InterruptedException {
+        if (from == to) {
+            throw new IllegalArgumentException("from and to must be different resources");
+        }
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        Shard s1 = shardOf(from);
+        Shard s2 = shardOf(to);
+        Shard first = s1.index <= s2.index ? s1 : s2;
+        Shard second = s1.index <= s2.index ? s2 : s1;
+        for (; ; ) {
+            Waiter waiter;
+            // 按分段序号从小到大加锁
+            first.lock.lock();
+            if (second != first) {
+                second.lock.lock();
+            }
+            try {
+                Resource r1 = s1.resources.get(from);
+                Resource r2 = s2.resources.get(to);
+                Resource busy = r1 != null && r1.held ? r1 : r2 != null && r2.held ? r2 : null;
+                if (busy == null) {
+                    s1.acquire(from, r1);
+                    s2.acquire(to, r2);
+                    waitTimes.record(System.nanoTime() - start);
+                    return true;
+                }
+                // 只挂在一个被占用的资源上：它被归还时再重新尝试
+                waiter = new Waiter(Thread.currentThread());
+                busy.waiters.add(waiter);
+            } finally {
+                if (second != first) {
+                    second.lock.unlock();
+                }
+                first.lock.unlock();
+            }
+            if (!await(waiter, deadline)) {
+                cancel(waiter, from, to);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                timeouts.incrementAndGet();
+                waitTimes.record(System.nanoTime() - start);
+                return false;
+            }
+        }
+    }
+
+    public void free(Object from, Object to) {
+        Shard s1 = shardOf(from);
+        Shard s2 = shardOf(to);
+        Shard first = s1.index <= s2.index ? s1 : s2;
+        Shard second = s1.index <= s2.index ? s2 : s1;
+        first.lock.lock();
+        if (second != first) {
+            second.lock.lock();
+        }
+        try {
+            s1.release(from);
+            s2.release(to);
+        } finally {
+            if (second != first) {
+                second.lock.unlock();
+            }
+            first.lock.unlock();
+        }
+    }
+
+    public WaitTimeHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    // 被唤醒返回 true，超时或者被中断返回 false
+    private static boolean await(Waiter waiter, long deadline) {
+        while (!waiter.signalled) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            LockSupport.parkNanos(waiter, remaining);
+        }
+        return true;
+    }
+
+    // 超时后把自己从等待队列里摘掉；如果摘之前恰好被唤醒，release() 已经把它移出了队列，这里什么都不用做
+    private void cancel(Waiter waiter, Object from, Object to) {
+        for (Object resource : new Object[]{from, to}) {
+            Shard shard = shardOf(resource);
+            shard.lock.lock();
+            try {
+                Resource r = shard.resources.get(resource);
+                if (r != null && r.waiters.remove(waiter)) {
+                    if (!r.held && r.waiters.isEmpty()) {
+                        shard.resources.remove(resource);
+                    }
+                    return;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    private Shard shardOf(Object resource) {
+        int h = System.identityHashCode(resource);
+        return shards[(h ^ (h >>> 16)) & shardMask];
+    }
+
+    private static final class Shard {
+
+        final int index;
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        // 只保存被占用或者有人在等的资源
+        final Map<Object, Resource> resources = new IdentityHashMap<>();
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        // 持有锁时调用
+        void acquire(Object key, Resource r) {
+            if (r == null) {
+                r = new Resource();
+                resources.put(key, r);
+            }
+            r.held = true;
+        }
+
+        // 持有锁时调用，唤醒等待这个资源的所有线程，其它资源上的等待者不受影响
+        void release(Object key) {
+            Resource r = resources.get(key);
+            if (r == null) {
+                return;
+            }
+            r.held = false;
+            Waiter waiter;
+            while ((waiter = r.waiters.poll()) != null) {
+                waiter.signalled = true;
+                LockSupport.unpark(waiter.thread);
+            }
+            resources.remove(key);
+        }
+    }
+
+    private static final class Resource {
+
+        boolean held;
+
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    }
+
+    private static final class Waiter {
+
+        final Thread thread;
+
+        volatile boolean signalled;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
+
+// 按 2 的幂分桶的等待时间直方图：第 i 个桶统计 [2^(i-1), 2^i) 纳秒，记录只是一次原子自增
+class WaitTimeHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanNanos() {
+        long c = count.get();
+        return c == 0 ? 0 : totalNanos.get() / c;
+    }
+
+    // 返回分位数所在桶的上界（ 纳秒 ），percentile 取值 0 ~ 100
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanNanos() + "ns, p50<=" + getPercentileNanos(50)
+                + "ns, p99<=" + getPercentileNanos(99) + "ns, p999<=" + getPercentileNanos(99.9) + "ns";
+    }
+}
+
 class Account {
     // 锁：保护账户余额
     private final Object balLock = new Object();
@@ -271,6 +553,30 @@ class Account {
         }
     }
 
+    // 转账 分段的资源分配器，申请不到就挂起等待，超时返回 false
+    private static ShardedAllocator shardedAllocator = new ShardedAllocator();
+
+    boolean transferShardedAllocator(Account target, int amount, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!shardedAllocator.apply(this, target, timeout, unit)) {
+            return false;
+        }
+        try {
+            // 锁定转出账户
+            synchronized (this) {
+                // 锁定转入账户
+                synchronized (target) {
+                    if (this.balance > amount) {
+                        this.balance -= amount;
+                        target.balance += amount;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            shardedAllocator.free(this, target);
+        }
+    }
+
     // 死锁转账
     void transferWithDeadLock(Account target, int amt) {
         // 锁定转出账户
@@ -328,6 +634,249 @@ class Account {
 
 }
 
+// 高吞吐的账户账本：余额是以分为单位的 long，按账户 id 存放在 AtomicLongArray 里
+// 单账户的 credit / debit 用 CAS 完成，不加锁；两账户的 transfer 按序锁定两个锁分段，
+// 转账在锁内仍然用 CAS 扣款，所以和并发的无锁 debit 之间也不会扣成负数；
+// 锁分段的作用是让转账的 「 扣款 + 入账 」 对其它持锁者是原子的，auditTotal() 锁住全部分段后看到的总额里不会有 「 在途 」 的钱
+class AccountLedger {
+
+    private static final int DEFAULT_STRIPES = 1024;
+
+    private final AtomicLongArray balances;
+
+    private final ReentrantLock[] stripes;
+
+    private final int stripeMask;
+
+    public AccountLedger(int accounts) {
+        this(accounts, DEFAULT_STRIPES);
+    }
+
+    public AccountLedger(int accounts, int stripeCount) {
+        if (accounts <= 0) {
+            throw new IllegalArgumentException("accounts must be positive: " + accounts);
+        }
+        if (stripeCount <= 0 || stripeCount > (1 << 16)) {
+            throw new IllegalArgumentException("stripeCount must be between 1 and 65536: " + stripeCount);
+        }
+        int size = stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        this.balances = new AtomicLongArray(accounts);
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = size - 1;
+    }
+
+    public int accounts() {
+        return balances.length();
+    }
+
+    public long getBalance(int id) {
+        return balances.get(id);
+    }
+
+    // 存款
+    public void credit(int id, long amount) {
+        checkAmount(amount);
+        balances.getAndAdd(id, amount);
+    }
+
+    // 取款，余额不足时返回 false
+    public boolean debit(int id, long amount) {
+        checkAmount(amount);
+        return tryDebit(id, amount);
+    }
+
+    // 转账，余额不足时返回 false
+    public boolean transfer(int from, int to, long amount) {
+        checkAmount(amount);
+        if (from == to) {
+            return balances.get(from) >= amount;
+        }
+        int s1 = stripeOf(from);
+        int s2 = stripeOf(to);
+        // 按序号从小到大锁定，不存在循环等待
+        ReentrantLock first = stripes[Math.min(s1, s2)];
+        ReentrantLock second = stripes[Math.max(s1, s2)];
+        first.lock();
+        second.lock();
+        try {
+            return move(from, to, amount);
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+    }
+
+    // 批量转账：结果和按数组顺序逐笔调用 transfer() 相同（ A->B 之后的 B->C 能用上刚转入的钱 ），但同一对锁分段上的转账只加一次锁。
+    // 按数组顺序取出第一笔还没执行的转账，锁住它的一对分段，再把同一对分段上后面的转账一起执行，
+    // 条件是涉及同一个账户的更早的转账都已经执行过了，遇到第一笔不满足条件的就停下，留到它自己的那一轮。
+    // 每个账户上的转账仍然按数组顺序执行，而不涉及相同账户的转账谁先谁后不影响结果，所以提前执行它们是安全的。
+    // 所有账户 id 都先检查一遍，不会执行到一半才发现 id 越界；results 不为 null 时记录每一笔是否成功，返回成功的笔数
+    public int applyTransfers(int[] from, int[] to, long[] amounts, boolean[] results) {
+        int n = from.length;
+        if (to.length != n || amounts.length != n || (results != null && results.length < n)) {
+            throw new IllegalArgumentException("batch arrays must have the same length");
+        }
+        for (int i = 0; i < n; i++) {
+            checkAmount(amounts[i]);
+            checkId(from[i]);
+            checkId(to[i]);
+        }
+        // 按 (锁分段对, 下标) 排序，同一对分段上的转账排在一起，并且保持原来的先后顺序
+        long[] byPair = new long[n];
+        for (int i = 0; i < n; i++) {
+            byPair[i] = (long) pairOf(from[i], to[i]) << 32 | i;
+        }
+        Arrays.sort(byPair);
+        int[] positions = new int[n];
+        for (int p = 0; p < n; p++) {
+            positions[(int) byPair[p]] = p;
+        }
+        int[] previous = previousTransfers(from, to);
+        boolean[] done = new boolean[n];
+        int applied = 0;
+        for (int leader = 0; leader < n; leader++) {
+            if (done[leader]) {
+                continue;
+            }
+            int pair = (int) (byPair[positions[leader]] >>> 32);
+            ReentrantLock first = stripes[pair >>> 16];
+            ReentrantLock second = stripes[pair & 0xFFFF];
+            first.lock();
+            second.lock();
+            try {
+                // 同一对分段上排在 leader 前面的转账都已经执行过了，从 leader 开始往后执行
+                for (int p = positions[leader]; p < n && (int) (byPair[p] >>> 32) == pair; p++) {
+                    int i = (int) byPair[p];
+                    if (!isReady(i, previous, done)) {
+                        break;
+                    }
+                    boolean ok = from[i] == to[i] ? balances.get(from[i]) >= amounts[i] : move(from[i], to[i], amounts[i]);
+                    done[i] = true;
+                    if (ok) {
+                        applied++;
+                    }
+                    if (results != null) {
+                        results[i] = ok;
+                    }
+                }
+            } finally {
+                second.unlock();
+                first.unlock();
+            }
+        }
+        return applied;
+    }
+
+    // 一对锁分段编码成一个 int：高 16 位是较小的分段号，低 16 位是较大的分段号（ 分段数不超过 65536 ）
+    private int pairOf(int from, int to) {
+        int s1 = stripeOf(from);
+        int s2 = stripeOf(to);
+        return Math.min(s1, s2) << 16 | Math.max(s1, s2);
+    }
+
+    // 第 i 笔转账在 from 和 to 上的前一笔转账分别记在 previous[2 * i] 和 previous[2 * i + 1]，没有时为 -1
+    private static int[] previousTransfers(int[] from, int[] to) {
+        int n = from.length;
+        // 高 32 位是账户，低 32 位是 2 * i（ from ）或者 2 * i + 1（ to ），排序后同一个账户上的转账按下标排在一起
+        long[] touches = new long[2 * n];
+        for (int i = 0; i < n; i++) {
+            touches[2 * i] = (long) from[i] << 32 | (2L * i);
+            touches[2 * i + 1] = (long) to[i] << 32 | (2L * i + 1);
+        }
+        Arrays.sort(touches);
+        int[] previous = new int[2 * n];
+        int account = -1;
+        int last = -1;
+        int beforeLast = -1;
+        for (long touch : touches) {
+            int slot = (int) (touch & 0xFFFFFFFFL);
+            int i = slot >>> 1;
+            if ((int) (touch >>> 32) != account) {
+                account = (int) (touch >>> 32);
+                last = -1;
+                beforeLast = -1;
+            }
+            // from == to 时同一笔转账在这个账户上出现两次，前一笔不能是它自己
+            if (i != last) {
+                beforeLast = last;
+                last = i;
+            }
+            previous[slot] = beforeLast;
+        }
+        return previous;
+    }
+
+    // 第 i 笔转账涉及的账户上，更早的转账都已经执行过了。
+    // 已执行的转账集合对 「 前一笔 」 是封闭的，所以只需要检查紧挨着的前一笔
+    private static boolean isReady(int i, int[] previous, boolean[] done) {
+        int p1 = previous[2 * i];
+        int p2 = previous[2 * i + 1];
+        return (p1 < 0 || done[p1]) && (p2 < 0 || done[p2]);
+    }
+
+    // 锁住全部分段后求总额，结果里不包含转账的中间状态
+    public long auditTotal() {
+        int locked = 0;
+        try {
+            for (ReentrantLock stripe : stripes) {
+                stripe.lock();
+                locked++;
+            }
+            long total = 0;
+            for (int i = 0; i < balances.length(); i++) {
+                total += balances.get(i);
+            }
+            return total;
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    // 持有 from 和 to 所在分段的锁时调用
+    private boolean move(int from, int to, long amount) {
+        if (!tryDebit(from, amount)) {
+            return false;
+        }
+        balances.getAndAdd(to, amount);
+        return true;
+    }
+
+    private boolean tryDebit(int id, long amount) {
+        for (; ; ) {
+            long balance = balances.get(id);
+            if (balance < amount) {
+                return false;
+            }
+            if (balances.compareAndSet(id, balance, balance - amount)) {
+                return true;
+            }
+        }
+    }
+
+    private int stripeOf(int id) {
+        // 打散相邻 id，避免连续账户集中在同一个分段
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= balances.length()) {
+            throw new IllegalArgumentException("account id out of range: " + id);
+        }
+    }
+
+    private static void checkAmount(long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("amount must not be negative: " + amount);
+        }
+    }
+}
+
 class UnSafeCalc {
     static long value = 0L;
 
@@ -58,5 +58,6 @@ public class ThreadLocalRandomDemo {
         executorService.invokeAll(threadLocalRandomCallables);
         // 上面的代码，为线程池中的每个线程单独使用了一个 ThreadLocalRandom 实例。
         // ThreadLocalRandom 在高度并发的环境中更有效。
+        // 用 JMH 测得的对比数据见 Benchmark 模块的 RandomBenchmark：java -jar Benchmark/target/benchmarks.jar RandomBenchmark
     }
 }
@@ -1,8 +1,23 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 public class ThreadPoolDemo {
@@ -160,9 +175,63 @@ public class ThreadPoolDemo {
         TreeNode tree = new TreeNode(5,
                                      new TreeNode(3), new TreeNode(2,
                                                                    new TreeNode(2), new TreeNode(8)));
+        // 这里为了简单直接使用了公共池；需要和其它负载隔离时，应该使用单独的具名线程池，见 ForkJoin 模块中的 class ForkJoinPoolRegistry
         ForkJoinPool commonForkJoinPool = ForkJoinPool.commonPool();
         int sum = commonForkJoinPool.invoke(new CountingTask(tree));
 
+        // CountingTask 为每个节点都创建一个任务，TreeNode 的子节点又放在 HashSet 里，遍历顺序不确定，节点也散落在堆的各个地方，
+        // 节点数到千万级别时，对象分配和缓存未命中的开销远远超过求和本身。
+        // 更紧凑的做法是把树按先序遍历的顺序平铺到两个 int[] 里：values[i] 是节点 i 的值，subtreeSizes[i] 是以节点 i 为根的子树的节点数，
+        // 这样每棵子树都占据连续的下标 [i, i + subtreeSizes[i])，第一个子节点是 i + 1，下一个兄弟节点是 c + subtreeSizes[c]。
+        // 见 class FlatTree
+        // 对应的 ForkJoin 求和任务只为节点数不小于 cutoff 的子树 fork 子任务，小的子树直接在连续的数组区间上顺序计算。
+        // 见 class FlatTreeSumTask
+        FlatTree flatTree = FlatTree.from(tree);
+        long flatSum = FlatTreeSumTask.sum(commonForkJoinPool, flatTree);
+        long[] subtreeTotals = FlatTreeSumTask.subtreeTotals(commonForkJoinPool, flatTree);
+        System.out.println(sum == flatSum && subtreeTotals[0] == flatSum); // true
+
+        // 五、观察线程池：排队时间和执行时间
+        // 出现延迟毛刺时，需要区分是任务在队列里等得太久（ 线程池太小 ），还是任务本身执行得慢。
+        // InstrumentedThreadPoolExecutor 在 beforeExecute() / afterExecute() 钩子中记录每个任务的排队时间和执行时间，
+        // 每个工作线程写自己的直方图，记录时不分配对象，可以在生产环境中一直开着。
+        // 见 class InstrumentedThreadPoolExecutor
+        InstrumentedThreadPoolExecutor instrumentedExecutor =
+                new InstrumentedThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        for (int i = 0; i < 20; i++) {
+            instrumentedExecutor.submit(() -> {
+                Thread.sleep(10);
+                return null;
+            });
+        }
+        instrumentedExecutor.shutdown();
+        instrumentedExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        // 2 个线程处理 20 个 10 毫秒的任务，后面的任务要排队约 90 毫秒，所以排队时间的 p99 远大于执行时间的 p50
+        System.out.println(instrumentedExecutor.getQueueWaitPercentileNanos(99) > instrumentedExecutor.getServiceTimePercentileNanos(50)); // true
+        System.out.println(instrumentedExecutor.report());
+
+        // 六、自动调整线程池的大小
+        // 固定大小的线程池对 I/O 型任务来说太小，newCachedThreadPool 在突发流量下又会创建成千上万个线程。
+        // PoolSizeController 周期性地测量吞吐量、排队时间和线程的阻塞比例，用爬山法调整线程池的大小。
+        // 见 class PoolSizeController
+        // 下面的任务大部分时间在 sleep（ 模拟 I/O ），从 1 个线程开始，控制器会逐步增加线程
+        InstrumentedThreadPoolExecutor ioExecutor =
+                new InstrumentedThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        try (PoolSizeController controller = new PoolSizeController(ioExecutor, 1, 32, 4, 0.5,
+                                                                     TimeUnit.MILLISECONDS.toNanos(5), 50, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < 2000; i++) {
+                ioExecutor.submit(() -> {
+                    Thread.sleep(5);
+                    return null;
+                });
+            }
+            Thread.sleep(300);
+            System.out.println(controller.getTargetSize() > 1); // true
+            System.out.println(controller);
+        }
+        ioExecutor.shutdown();
+        ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+
     }
 
     public static class CountingTask extends RecursiveTask<Integer> {
@@ -182,6 +251,232 @@ public class ThreadPoolDemo {
         }
     }
 
+    // 按先序遍历平铺的树，子树 i 占据连续的下标 [i, i + subtreeSizes[i])，节点 0 是根
+    static class FlatTree {
+
+        final int[] values;
+
+        final int[] subtreeSizes;
+
+        FlatTree(int[] values, int[] subtreeSizes) {
+            int n = values.length;
+            if (n == 0 || subtreeSizes.length != n || subtreeSizes[0] != n) {
+                throw new IllegalArgumentException("subtreeSizes[0] must equal the node count and the arrays must have the same length");
+            }
+            // 每个节点的子树必须恰好被它的子节点的子树铺满，每个节点只作为子节点被访问一次，总共 O(n)
+            for (int i = 0; i < n; i++) {
+                int end = i + subtreeSizes[i];
+                if (subtreeSizes[i] <= 0 || end > n) {
+                    throw new IllegalArgumentException("invalid subtree size at node " + i + ": " + subtreeSizes[i]);
+                }
+                int c = i + 1;
+                while (c < end && subtreeSizes[c] > 0) {
+                    c += subtreeSizes[c];
+                }
+                if (c != end) {
+                    throw new IllegalArgumentException("children of node " + i + " do not tile its subtree");
+                }
+            }
+            this.values = values;
+            this.subtreeSizes = subtreeSizes;
+        }
+
+        // 把 TreeNode 转换成 FlatTree，使用显式的栈而不是递归，很深的树也不会栈溢出
+        static FlatTree from(TreeNode root) {
+            // 第一遍只数节点数，第二遍按先序写入 values，并记录每个节点的父节点下标
+            int n = 0;
+            Deque<TreeNode> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                TreeNode node = stack.pop();
+                n++;
+                for (TreeNode child : node.children) {
+                    stack.push(child);
+                }
+            }
+
+            int[] values = new int[n];
+            int[] parents = new int[n];
+            Deque<TreeNode> nodes = new ArrayDeque<>();
+            // 和 nodes 同步压栈的父节点下标，int[] 当作栈使用，最多同时有 n 个元素
+            int[] parentStack = new int[n];
+            int top = 0;
+            nodes.push(root);
+            parentStack[top++] = -1;
+            int next = 0;
+            while (!nodes.isEmpty()) {
+                TreeNode node = nodes.pop();
+                int index = next++;
+                values[index] = node.value;
+                parents[index] = parentStack[--top];
+                for (TreeNode child : node.children) {
+                    nodes.push(child);
+                    parentStack[top++] = index;
+                }
+            }
+
+            // 先序遍历中父节点的下标总是小于子节点，从后往前累加即可得到每棵子树的节点数
+            int[] subtreeSizes = new int[n];
+            Arrays.fill(subtreeSizes, 1);
+            for (int i = n - 1; i > 0; i--) {
+                subtreeSizes[parents[i]] += subtreeSizes[i];
+            }
+            return new FlatTree(values, subtreeSizes);
+        }
+
+        int size() {
+            return values.length;
+        }
+    }
+
+    // FlatTree 的并行求和，只为节点数不小于 cutoff 的子树 fork 子任务；
+    // 如果传入了 totals，还会把每个节点的子树之和写到 totals 中对应的位置。
+    // 每个任务沿着 「 最大的子节点 」 往下走，而不是为它再 fork 一个任务，其余被 fork 的子树都不超过父节点的一半，
+    // 所以任务的嵌套深度只有 O(log n)，即使是链表一样的树也不会栈溢出。
+    // 继承 RecursiveAction，结果放在 long 字段里，fork 出的任务通过 next 字段串起来，不需要额外的集合
+    public static class FlatTreeSumTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        static final int DEFAULT_CUTOFF = 8192;
+
+        private final FlatTree tree;
+
+        private final int root;
+
+        // root 在所属任务中的父节点，用于把结果累加到父节点的 totals 上
+        private final int parent;
+
+        private final int cutoff;
+
+        private final long[] totals;
+
+        private FlatTreeSumTask next;
+
+        private long result;
+
+        public FlatTreeSumTask(FlatTree tree, int cutoff, long[] totals) {
+            this(tree, 0, -1, cutoff, totals);
+        }
+
+        private FlatTreeSumTask(FlatTree tree, int root, int parent, int cutoff, long[] totals) {
+            if (cutoff <= 0) {
+                throw new IllegalArgumentException("cutoff must be positive: " + cutoff);
+            }
+            if (totals != null && totals.length != tree.size()) {
+                throw new IllegalArgumentException("totals length " + totals.length + " != node count " + tree.size());
+            }
+            this.tree = tree;
+            this.root = root;
+            this.parent = parent;
+            this.cutoff = cutoff;
+            this.totals = totals;
+        }
+
+        public static long sum(ForkJoinPool pool, FlatTree tree) {
+            FlatTreeSumTask task = new FlatTreeSumTask(tree, DEFAULT_CUTOFF, null);
+            pool.invoke(task);
+            return task.getResult();
+        }
+
+        public static long[] subtreeTotals(ForkJoinPool pool, FlatTree tree) {
+            long[] totals = new long[tree.size()];
+            pool.invoke(new FlatTreeSumTask(tree, DEFAULT_CUTOFF, totals));
+            return totals;
+        }
+
+        // 任务完成之后调用
+        public long getResult() {
+            return result;
+        }
+
+        @Override
+        protected void compute() {
+            int[] values = tree.values;
+            int[] sizes = tree.subtreeSizes;
+            long sum = 0;
+            FlatTreeSumTask forked = null;
+            int node = root;
+            while (node >= 0) {
+                int heavy = heavyChild(node);
+                int end = node + sizes[node];
+                long partial = values[node];
+                for (int c = node + 1; c < end; c += sizes[c]) {
+                    if (c == heavy) {
+                        continue;
+                    }
+                    if (sizes[c] >= cutoff) {
+                        FlatTreeSumTask task = new FlatTreeSumTask(tree, c, node, cutoff, totals);
+                        task.next = forked;
+                        forked = task;
+                        task.fork();
+                    } else {
+                        partial += sequential(c);
+                    }
+                }
+                // 暂时只记录这个节点自己的部分和，最后再换算成子树之和
+                if (totals != null) {
+                    totals[node] = partial;
+                }
+                sum += partial;
+                node = heavy;
+            }
+            for (FlatTreeSumTask task = forked; task != null; task = task.next) {
+                task.join();
+                sum += task.result;
+                if (totals != null) {
+                    totals[task.parent] += task.result;
+                }
+            }
+            if (totals != null) {
+                // 沿着同一条路径往下，节点的子树之和 = 根的总和 - 路径上位于它之前的节点的部分和
+                long remaining = sum;
+                for (node = root; node >= 0; node = heavyChild(node)) {
+                    long partial = totals[node];
+                    totals[node] = remaining;
+                    remaining -= partial;
+                }
+            }
+            result = sum;
+        }
+
+        // 节点数不小于 cutoff 的子节点中最大的一个，没有则返回 -1
+        private int heavyChild(int node) {
+            int[] sizes = tree.subtreeSizes;
+            int end = node + sizes[node];
+            int heavy = -1;
+            for (int c = node + 1; c < end; c += sizes[c]) {
+                if (sizes[c] >= cutoff && (heavy < 0 || sizes[c] > sizes[heavy])) {
+                    heavy = c;
+                }
+            }
+            return heavy;
+        }
+
+        // 顺序计算子树 start 的和，子树占据连续的下标，不需要递归
+        private long sequential(int start) {
+            int[] values = tree.values;
+            int[] sizes = tree.subtreeSizes;
+            int end = start + sizes[start];
+            if (totals == null) {
+                long sum = 0;
+                for (int i = start; i < end; i++) {
+                    sum += values[i];
+                }
+                return sum;
+            }
+            // 从后往前扫描，处理到节点 j 时它的子节点都已经算好
+            for (int j = end - 1; j >= start; j--) {
+                long total = values[j];
+                for (int c = j + 1, e = j + sizes[j]; c < e; c += sizes[c]) {
+                    total += totals[c];
+                }
+                totals[j] = total;
+            }
+            return totals[start];
+        }
+    }
+
     static class TreeNode {
         int value;
         Set<TreeNode> children;
@@ -192,6 +487,724 @@ public class ThreadPoolDemo {
         }
     }
 
+    // 记录任务排队时间和执行时间分布的 ThreadPoolExecutor。
+    // 1、排队时间：submit() / invokeAll() 通过 newTaskFor() 创建 TimedFutureTask，创建时记下提交时间，beforeExecute() 里用开始时间减去提交时间；
+    //    TimedFutureTask 替代了原来就要创建的 FutureTask，所以不会多分配对象。直接 execute() 的 Runnable 没有地方保存提交时间，只记录执行时间，计入 untimedTasks；
+    // 2、执行时间：beforeExecute() 记下开始时间，afterExecute() 里用结束时间减去开始时间；
+    // 3、每个工作线程有自己的一组直方图，只有这个线程写，没有竞争也没有 CAS，查询时再把所有线程的直方图加起来；
+    //    线程退出后（ keepAlive 超时或者线程池缩小 ），它的计数在下一次注册新线程或者查询时并入 retired，它自己的直方图随之丢弃，
+    //    所以内存只和存活的线程数有关，不会随着线程的创建和退出一直增长；
+    // 4、被拒绝的任务由包装过的 RejectedExecutionHandler 计数，再交给原来的处理器。
+    public static class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+        private final ThreadLocal<WorkerStats> workerStats = ThreadLocal.withInitial(this::register);
+
+        // 以下两个字段由 allStats 的锁保护：存活的工作线程的统计，以及已经退出的线程并在一起的统计
+        private final List<WorkerStats> allStats = new ArrayList<>();
+
+        private final WorkerStats retired = new WorkerStats(null);
+
+        private final LongAdder rejected = new LongAdder();
+
+        public InstrumentedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                              BlockingQueue<Runnable> workQueue) {
+            this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue,
+                 Executors.defaultThreadFactory(), new AbortPolicy());
+        }
+
+        public InstrumentedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                              BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory,
+                                              RejectedExecutionHandler handler) {
+            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
+            // 父类构造函数直接保存 handler，不会调用 setRejectedExecutionHandler()，所以在这里包装
+            setRejectedExecutionHandler(handler);
+        }
+
+        @Override
+        public void setRejectedExecutionHandler(RejectedExecutionHandler handler) {
+            Objects.requireNonNull(handler, "handler");
+            super.setRejectedExecutionHandler(handler instanceof CountingRejectedExecutionHandler
+                                                      ? handler : new CountingRejectedExecutionHandler(handler, rejected));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new TimedFutureTask<>(runnable, value);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new TimedFutureTask<>(callable);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            WorkerStats stats = workerStats.get();
+            long now = System.nanoTime();
+            stats.startNanos = now;
+            if (r instanceof TimedFutureTask) {
+                stats.queueWait.record(now - ((TimedFutureTask<?>) r).submitNanos);
+            } else {
+                stats.untimedTasks.lazySet(stats.untimedTasks.get() + 1);
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            WorkerStats stats = workerStats.get();
+            stats.serviceTime.record(System.nanoTime() - stats.startNanos);
+            super.afterExecute(r, t);
+        }
+
+        private WorkerStats register() {
+            WorkerStats stats = new WorkerStats(Thread.currentThread());
+            synchronized (allStats) {
+                retireDeadWorkers();
+                allStats.add(stats);
+            }
+            return stats;
+        }
+
+        // 持有 allStats 的锁时调用；isAlive() 返回 false 之后能看到这个线程的所有写入
+        private void retireDeadWorkers() {
+            for (Iterator<WorkerStats> it = allStats.iterator(); it.hasNext(); ) {
+                WorkerStats stats = it.next();
+                if (!stats.owner.isAlive()) {
+                    retired.queueWait.add(stats.queueWait);
+                    retired.serviceTime.add(stats.serviceTime);
+                    retired.untimedTasks.lazySet(retired.untimedTasks.get() + stats.untimedTasks.get());
+                    it.remove();
+                }
+            }
+        }
+
+        // 存活的线程和已经退出的线程的统计之和；在锁里面合并，避免同一个线程的统计在并入 retired 的同时被算两次
+        private long sum(ToLongFunction<WorkerStats> field) {
+            synchronized (allStats) {
+                retireDeadWorkers();
+                long total = field.applyAsLong(retired);
+                for (WorkerStats stats : allStats) {
+                    total += field.applyAsLong(stats);
+                }
+                return total;
+            }
+        }
+
+        private LatencyHistogram.Snapshot merge(Function<WorkerStats, LatencyHistogram> histogram) {
+            LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+            synchronized (allStats) {
+                retireDeadWorkers();
+                histogram.apply(retired).addTo(snapshot);
+                for (WorkerStats stats : allStats) {
+                    histogram.apply(stats).addTo(snapshot);
+                }
+            }
+            return snapshot;
+        }
+
+        public long getQueueWaitPercentileNanos(double percentile) {
+            return mergeQueueWait().percentile(percentile);
+        }
+
+        public long getServiceTimePercentileNanos(double percentile) {
+            return mergeServiceTime().percentile(percentile);
+        }
+
+        public long getRejectedCount() {
+            return rejected.sum();
+        }
+
+        // 直接 execute() 提交、没有排队时间的任务数
+        public long getUntimedTaskCount() {
+            return sum(stats -> stats.untimedTasks.get());
+        }
+
+        public int getQueueDepth() {
+            return getQueue().size();
+        }
+
+        // 以下累计值只增不减，两次读取之差就是这段时间内的总和，PoolSizeController 用它们计算平均排队时间和线程忙碌的时间
+        public long getQueueWaitCount() {
+            return sum(stats -> stats.queueWait.count());
+        }
+
+        public long getQueueWaitTotalNanos() {
+            return sum(stats -> stats.queueWait.sum());
+        }
+
+        public long getServiceTimeTotalNanos() {
+            return sum(stats -> stats.serviceTime.sum());
+        }
+
+        private LatencyHistogram.Snapshot mergeQueueWait() {
+            return merge(stats -> stats.queueWait);
+        }
+
+        private LatencyHistogram.Snapshot mergeServiceTime() {
+            return merge(stats -> stats.serviceTime);
+        }
+
+        // 例如 queueWait[n=100, p50=12us, p99=1.2ms, p999=3.1ms] serviceTime[...] rejected=0 queueDepth=3
+        public String report() {
+            return "queueWait" + mergeQueueWait() + " serviceTime" + mergeServiceTime()
+                    + " untimed=" + getUntimedTaskCount() + " rejected=" + getRejectedCount()
+                    + " queueDepth=" + getQueueDepth() + " poolSize=" + getPoolSize();
+        }
+
+        // 一个工作线程的统计，只被这个线程写；retired 的 owner 为 null，只在持有 allStats 的锁时写
+        private static final class WorkerStats {
+
+            final Thread owner;
+
+            final LatencyHistogram queueWait = new LatencyHistogram();
+
+            final LatencyHistogram serviceTime = new LatencyHistogram();
+
+            final AtomicLong untimedTasks = new AtomicLong();
+
+            long startNanos;
+
+            WorkerStats(Thread owner) {
+                this.owner = owner;
+            }
+        }
+
+        // 创建时（ 也就是 submit() 时 ）记下时间的 FutureTask
+        static final class TimedFutureTask<V> extends FutureTask<V> {
+
+            final long submitNanos = System.nanoTime();
+
+            TimedFutureTask(Callable<V> callable) {
+                super(callable);
+            }
+
+            TimedFutureTask(Runnable runnable, V result) {
+                super(runnable, result);
+            }
+        }
+
+        private static final class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+
+            private final RejectedExecutionHandler delegate;
+
+            private final LongAdder rejected;
+
+            CountingRejectedExecutionHandler(RejectedExecutionHandler delegate, LongAdder rejected) {
+                this.delegate = delegate;
+                this.rejected = rejected;
+            }
+
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                rejected.increment();
+                delegate.rejectedExecution(r, executor);
+            }
+        }
+    }
+
+    // 根据测量结果周期性调整 ThreadPoolExecutor 大小的控制器，思路类似 .NET 线程池的线程注入算法（ hill climbing ）：
+    // 1、每个周期测量吞吐量（ 完成的任务数 / 时间 ）、平均排队时间和工作线程的阻塞比例；
+    // 2、吞吐量比平滑后的历史值明显提高，说明上一次调整的方向是对的，继续沿这个方向调整；明显下降就反向；
+    // 3、吞吐量的变化在噪声范围内时，由排队时间和阻塞比例决定方向：
+    //    按 「 线程数 = 核数 / (1 - 阻塞比例) 」 估算合适的线程数，排队时间超过目标且线程数小于估算值时加线程，大于估算值时减线程；
+    // 4、队列为空且有空闲线程时，说明没有积压，逐步缩小到正在工作的线程数；
+    // 5、吞吐量按指数加权平均平滑，damping 是新样本的权重，越小越平稳；每次最多调整 maxStep 个线程，避免来回震荡。
+    // 阻塞比例 = 执行任务期间处于 BLOCKED / WAITING / TIMED_WAITING 状态的时间 / 执行任务的时间，
+    // 状态时间来自 ThreadMXBean 的线程争用监控（ ThreadInfo.getBlockedTime() / getWaitedTime() ），包括在队列上等任务的空闲时间，
+    // 空闲时间 = 线程存活的时间 - 执行任务的时间，减掉之后就是任务自己阻塞的时间。
+    // 不能用 「 1 - CPU 时间 / 执行任务的时间 」：线程多于核数时，可运行的线程排队等 CPU 的时间也会被算成阻塞，
+    // 纯计算型的任务阻塞比例会接近 1 - 核数 / 线程数，估算的线程数随之变大，控制器就会不停地加线程。
+    // 控制器会包装线程池的线程工厂，只能统计之后创建的线程，执行任务的时间按这些线程占线程数的比例折算；close() 时恢复原来的线程工厂。
+    // 线程争用监控是整个 JVM 的开关，打开后所有线程（ 不只是线程池的工作线程 ）进出阻塞、等待状态时都要多记一次时间。
+    // 监控原本是关闭的，由第一个控制器打开，最后一个控制器 close() 时再关掉；原本就是打开的则一直保持打开。
+    // JVM 不支持线程争用监控时阻塞比例按 0 计算，也就是最多按核数估算线程数。
+    // 线程池是 InstrumentedThreadPoolExecutor 时，执行任务的时间和排队时间直接取它的统计；
+    // 否则用 getActiveCount() 估算忙碌的时间，用 Little 定律（ 排队时间 = 队列长度 / 吞吐量 ）估算排队时间。
+    // 控制器把核心线程数和最大线程数设成同一个值，线程池应该使用 LinkedBlockingQueue 这样的队列，
+    // 不能使用 SynchronousQueue，否则限制最大线程数之后多出来的任务会被拒绝。
+    public static class PoolSizeController implements AutoCloseable {
+
+        static final int DEFAULT_MAX_STEP = 4;
+
+        static final double DEFAULT_DAMPING = 0.5;
+
+        static final long DEFAULT_TARGET_QUEUE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        static final long DEFAULT_PERIOD_MILLIS = 500;
+
+        // 吞吐量的相对变化小于这个值时视为噪声
+        private static final double NOISE = 0.05;
+
+        // 阻塞比例接近 1 时估算的线程数会无限大，最多按 95% 计算
+        private static final double MAX_BLOCKED_RATIO = 0.95;
+
+        private final ThreadPoolExecutor executor;
+
+        private final int minThreads;
+
+        private final int maxThreads;
+
+        private final int maxStep;
+
+        private final double damping;
+
+        private final long targetQueueWaitNanos;
+
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        private final boolean contentionMonitoringSupported;
+
+        // 使用线程争用监控的控制器个数，以及监控是不是由控制器打开的，由 PoolSizeController.class 保护
+        private static int contentionMonitoringUsers;
+
+        private static boolean contentionMonitoringEnabledByControllers;
+
+        private boolean closed;
+
+        // 包装过的线程工厂创建的工作线程，以及上一次采样时它们的状态时间
+        private final ConcurrentHashMap<Thread, WorkerSample> workers = new ConcurrentHashMap<>();
+
+        private final ThreadFactory originalFactory;
+
+        private final ThreadFactory trackingFactory;
+
+        private final ScheduledExecutorService scheduler;
+
+        // 以下状态只在 adjust() 中读写，adjust() 是 synchronized 的
+        private int size;
+
+        private int direction = 1;
+
+        private long lastNanos;
+
+        private long lastCompleted;
+
+        private long lastQueueWaitCount;
+
+        private long lastQueueWaitTotal;
+
+        private long lastServiceTimeTotal;
+
+        private double smoothedThroughput;
+
+        private volatile double throughput;
+
+        private volatile double blockedRatio;
+
+        private volatile long queueWaitNanos;
+
+        public PoolSizeController(ThreadPoolExecutor executor, int minThreads, int maxThreads) {
+            this(executor, minThreads, maxThreads, DEFAULT_MAX_STEP, DEFAULT_DAMPING, DEFAULT_TARGET_QUEUE_WAIT_NANOS,
+                 DEFAULT_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        public PoolSizeController(ThreadPoolExecutor executor, int minThreads, int maxThreads, int maxStep, double damping,
+                                  long targetQueueWaitNanos, long period, TimeUnit unit) {
+            Objects.requireNonNull(executor, "executor");
+            if (minThreads <= 0 || maxThreads < minThreads) {
+                throw new IllegalArgumentException("require 0 < minThreads <= maxThreads: " + minThreads + ", " + maxThreads);
+            }
+            if (maxStep <= 0) {
+                throw new IllegalArgumentException("maxStep must be positive: " + maxStep);
+            }
+            if (!(damping > 0 && damping <= 1)) {
+                throw new IllegalArgumentException("damping must be in (0, 1]: " + damping);
+            }
+            if (targetQueueWaitNanos < 0) {
+                throw new IllegalArgumentException("targetQueueWaitNanos must not be negative: " + targetQueueWaitNanos);
+            }
+            if (period <= 0) {
+                throw new IllegalArgumentException("period must be positive: " + period);
+            }
+            this.executor = executor;
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+            this.maxStep = maxStep;
+            this.damping = damping;
+            this.targetQueueWaitNanos = targetQueueWaitNanos;
+            this.contentionMonitoringSupported = threadMXBean.isThreadContentionMonitoringSupported();
+            if (contentionMonitoringSupported) {
+                acquireContentionMonitoring(threadMXBean);
+            }
+
+            this.originalFactory = executor.getThreadFactory();
+            this.trackingFactory = r -> {
+                Thread thread = originalFactory.newThread(r);
+                if (thread != null) {
+                    workers.put(thread, new WorkerSample(thread.getId(), System.nanoTime()));
+                }
+                return thread;
+            };
+            executor.setThreadFactory(trackingFactory);
+
+            synchronized (this) {
+                size = Math.max(minThreads, Math.min(maxThreads, executor.getCorePoolSize()));
+                resize(size);
+                lastNanos = System.nanoTime();
+                lastCompleted = executor.getCompletedTaskCount();
+                if (executor instanceof InstrumentedThreadPoolExecutor) {
+                    InstrumentedThreadPoolExecutor instrumented = (InstrumentedThreadPoolExecutor) executor;
+                    lastQueueWaitCount = instrumented.getQueueWaitCount();
+                    lastQueueWaitTotal = instrumented.getQueueWaitTotalNanos();
+                    lastServiceTimeTotal = instrumented.getServiceTimeTotalNanos();
+                }
+            }
+
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "pool-size-controller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::adjust, period, period, unit);
+        }
+
+        // 测量一个周期并调整线程池大小，由定时任务调用，也可以手动调用
+        public synchronized void adjust() {
+            if (executor.isShutdown()) {
+                return;
+            }
+            long now = System.nanoTime();
+            long elapsed = now - lastNanos;
+            if (elapsed <= 0) {
+                return;
+            }
+            lastNanos = now;
+            long completed = executor.getCompletedTaskCount();
+            long completedDelta = completed - lastCompleted;
+            lastCompleted = completed;
+            double currentThroughput = completedDelta * 1e9 / elapsed;
+            int queued = executor.getQueue().size();
+            int active = executor.getActiveCount();
+
+            long busyNanos;
+            long currentQueueWait;
+            if (executor instanceof InstrumentedThreadPoolExecutor) {
+                InstrumentedThreadPoolExecutor instrumented = (InstrumentedThreadPoolExecutor) executor;
+                long waitCount = instrumented.getQueueWaitCount();
+                long waitTotal = instrumented.getQueueWaitTotalNanos();
+                long serviceTotal = instrumented.getServiceTimeTotalNanos();
+                currentQueueWait = waitCount > lastQueueWaitCount
+                        ? (waitTotal - lastQueueWaitTotal) / (waitCount - lastQueueWaitCount) : 0;
+                busyNanos = serviceTotal - lastServiceTimeTotal;
+                lastQueueWaitCount = waitCount;
+                lastQueueWaitTotal = waitTotal;
+                lastServiceTimeTotal = serviceTotal;
+            } else {
+                busyNanos = active * elapsed;
+                if (queued == 0) {
+                    currentQueueWait = 0;
+                } else {
+                    currentQueueWait = currentThroughput > 0 ? (long) (queued * 1e9 / currentThroughput) : elapsed;
+                }
+            }
+            double currentBlockedRatio = measureBlockedRatio(busyNanos, now);
+
+            throughput = currentThroughput;
+            queueWaitNanos = currentQueueWait;
+            blockedRatio = currentBlockedRatio;
+
+            int next;
+            if (queued == 0 && active < size) {
+                // 没有积压，缩小到正在工作的线程数，下次有积压时从增加线程开始
+                next = size - Math.min(maxStep, size - active);
+                direction = 1;
+            } else if (smoothedThroughput == 0) {
+                // 第一次有积压，还没有可以比较的吞吐量
+                next = size + direction;
+            } else {
+                double change = (currentThroughput - smoothedThroughput) / smoothedThroughput;
+                if (change > NOISE || change < -NOISE) {
+                    if (change < 0) {
+                        direction = -direction;
+                    }
+                    int step = (int) Math.min(maxStep, Math.max(1, Math.round(Math.abs(change) * size)));
+                    next = size + direction * step;
+                } else {
+                    int ideal = idealSize(currentBlockedRatio);
+                    if (currentQueueWait > targetQueueWaitNanos && size < ideal) {
+                        direction = 1;
+                        next = size + Math.min(maxStep, ideal - size);
+                    } else if (size > ideal) {
+                        direction = -1;
+                        next = size - 1;
+                    } else {
+                        next = size;
+                    }
+                }
+            }
+            smoothedThroughput = smoothedThroughput == 0
+                    ? currentThroughput : smoothedThroughput + (currentThroughput - smoothedThroughput) * damping;
+
+            next = Math.max(minThreads, Math.min(maxThreads, next));
+            if (next != size) {
+                size = next;
+                resize(next);
+            }
+        }
+
+        // 按 「 核数 / (1 - 阻塞比例) 」 估算的线程数
+        private int idealSize(double blocked) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            return (int) Math.ceil(cores / (1 - Math.min(blocked, MAX_BLOCKED_RATIO)));
+        }
+
+        private double measureBlockedRatio(long busyNanos, long now) {
+            List<WorkerSample> samples = new ArrayList<>(workers.size());
+            for (Map.Entry<Thread, WorkerSample> entry : workers.entrySet()) {
+                Thread thread = entry.getKey();
+                Thread.State state = thread.getState();
+                // 线程工厂创建之后、线程池启动它之前是 NEW，不能当成已经退出
+                if (state == Thread.State.TERMINATED) {
+                    workers.remove(thread);
+                } else if (state != Thread.State.NEW) {
+                    samples.add(entry.getValue());
+                }
+            }
+            if (!contentionMonitoringSupported || samples.isEmpty()) {
+                return 0;
+            }
+            // 一次调用取回所有工作线程的状态时间，而不是每个线程调用一次
+            long[] ids = new long[samples.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = samples.get(i).threadId;
+            }
+            ThreadInfo[] infos = threadMXBean.getThreadInfo(ids);
+            long aliveNanos = 0;
+            long waitedNanos = 0;
+            int tracked = 0;
+            for (int i = 0; i < infos.length; i++) {
+                ThreadInfo info = infos[i];
+                if (info == null || info.getBlockedTime() < 0 || info.getWaitedTime() < 0) {
+                    continue;
+                }
+                WorkerSample sample = samples.get(i);
+                long waited = TimeUnit.MILLISECONDS.toNanos(info.getBlockedTime() + info.getWaitedTime());
+                waitedNanos += waited - sample.waitedNanos;
+                aliveNanos += now - sample.sampleNanos;
+                sample.waitedNanos = waited;
+                sample.sampleNanos = now;
+                tracked++;
+            }
+            if (busyNanos <= 0 || tracked == 0) {
+                return 0;
+            }
+            // 执行任务的时间是整个线程池的，按被统计的线程所占的比例折算
+            long trackedBusyNanos = busyNanos * tracked / Math.max(tracked, executor.getPoolSize());
+            long idleNanos = Math.max(0, aliveNanos - trackedBusyNanos);
+            long blockedNanos = waitedNanos - idleNanos;
+            return Math.max(0, Math.min(1, (double) blockedNanos / Math.max(1, trackedBusyNanos)));
+        }
+
+        // 增大时先调最大线程数，缩小时先调核心线程数，保证任何时候核心线程数都不超过最大线程数
+        private void resize(int newSize) {
+            if (newSize > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(newSize);
+                executor.setCorePoolSize(newSize);
+            } else {
+                executor.setCorePoolSize(newSize);
+                executor.setMaximumPoolSize(newSize);
+            }
+        }
+
+        public synchronized int getTargetSize() {
+            return size;
+        }
+
+        // 以下是最近一个周期的测量值
+
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public double getBlockedRatio() {
+            return blockedRatio;
+        }
+
+        public long getQueueWaitNanos() {
+            return queueWaitNanos;
+        }
+
+        // 停止调整，线程池保持当前的大小；恢复原来的线程工厂（ 除非之后又被别人换掉了 ），
+        // 线程争用监控是控制器打开的并且没有其它控制器在用时把它关掉
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            scheduler.shutdownNow();
+            if (executor.getThreadFactory() == trackingFactory) {
+                executor.setThreadFactory(originalFactory);
+            }
+            workers.clear();
+            if (contentionMonitoringSupported) {
+                releaseContentionMonitoring(threadMXBean);
+            }
+        }
+
+        private static synchronized void acquireContentionMonitoring(ThreadMXBean threadMXBean) {
+            if (contentionMonitoringUsers++ == 0 && !threadMXBean.isThreadContentionMonitoringEnabled()) {
+                threadMXBean.setThreadContentionMonitoringEnabled(true);
+                contentionMonitoringEnabledByControllers = true;
+            }
+        }
+
+        private static synchronized void releaseContentionMonitoring(ThreadMXBean threadMXBean) {
+            if (--contentionMonitoringUsers == 0 && contentionMonitoringEnabledByControllers) {
+                threadMXBean.setThreadContentionMonitoringEnabled(false);
+                contentionMonitoringEnabledByControllers = false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("PoolSizeController[size=%d, throughput=%.1f/s, queueWait=%dus, blocked=%.2f]",
+                                 getTargetSize(), throughput, queueWaitNanos / 1_000, blockedRatio);
+        }
+
+        // 一个工作线程上一次采样的时间和当时累计的阻塞、等待时间；只在 adjust() 中读写
+        private static final class WorkerSample {
+
+            final long threadId;
+
+            long sampleNanos;
+
+            long waitedNanos;
+
+            WorkerSample(long threadId, long createdNanos) {
+                this.threadId = threadId;
+                this.sampleNanos = createdNanos;
+            }
+        }
+    }
+
+    // 单线程写、多线程读的对数-线性直方图（ 类似 HdrHistogram 的思路 ），单位纳秒。
+    // 小于 8 的值每个值一个桶；之后每个 2 的幂区间 [2^e, 2^(e+1)) 再等分成 8 个桶，相对误差不超过 12.5%，总共 488 个桶。
+    // 只有拥有者线程调用 record()，所以不需要 CAS，直接 get() + lazySet()；lazySet() 保证其它线程最终能读到计数
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        // 最大的 long 指数是 62，对应 (62 - SUB_BUCKET_BITS + 1) 组，再加上最前面的 SUB_BUCKETS 个单值桶
+        static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        // 记录的次数和总和，同样只由拥有者线程写
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            int index = bucket(value);
+            counts.lazySet(index, counts.get(index) + 1);
+            count.lazySet(count.get() + 1);
+            sum.lazySet(sum.get() + value);
+        }
+
+        // 把另一个直方图的计数加进来，和 record() 一样只能由拥有者（ 或者持有保护它的锁的线程 ）调用
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = other.counts.get(i);
+                if (c != 0) {
+                    counts.lazySet(i, counts.get(i) + c);
+                }
+            }
+            count.lazySet(count.get() + other.count.get());
+            sum.lazySet(sum.get() + other.sum.get());
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        long sum() {
+            return sum.get();
+        }
+
+        void addTo(Snapshot snapshot) {
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot.counts[i] += counts.get(i);
+            }
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+        }
+
+        // 桶中的最大值
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        // 多个直方图合并之后的计数
+        static final class Snapshot {
+
+            final long[] counts = new long[BUCKETS];
+
+            long count() {
+                long total = 0;
+                for (long c : counts) {
+                    total += c;
+                }
+                return total;
+            }
+
+            // percentile 取值 [0, 100]，返回所在桶的最大值，没有数据时返回 0
+            long percentile(double percentile) {
+                if (percentile < 0 || percentile > 100) {
+                    throw new IllegalArgumentException("percentile must be in [0, 100]: " + percentile);
+                }
+                long total = count();
+                if (total == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return upperBound(i);
+                    }
+                }
+                return upperBound(BUCKETS - 1);
+            }
+
+            @Override
+            public String toString() {
+                return "[n=" + count() + ", p50=" + format(percentile(50)) + ", p99=" + format(percentile(99))
+                        + ", p999=" + format(percentile(99.9)) + "]";
+            }
+
+            private static String format(long nanos) {
+                if (nanos < 1_000) {
+                    return nanos + "ns";
+                }
+                if (nanos < 1_000_000) {
+                    return String.format("%.1fus", nanos / 1e3);
+                }
+                if (nanos < 1_000_000_000) {
+                    return String.format("%.1fms", nanos / 1e6);
+                }
+                return String.format("%.2fs", nanos / 1e9);
+            }
+        }
+    }
+
 }
 
 